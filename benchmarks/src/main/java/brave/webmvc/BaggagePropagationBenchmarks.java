@@ -0,0 +1,142 @@
+package brave.webmvc;
+
+import brave.baggage.BaggagePropagation;
+import brave.baggage.BaggagePropagationConfig.SingleBaggageField;
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures what the "user_name" baggage field adds to extracting and injecting trace headers. This
+ * compares the B3 propagation webmvc4 wraps, a plain {@link BaggagePropagation} of the field, and
+ * {@link UserNamePropagation}, which webmvc4's {@code propagationFactory()} returns.
+ *
+ * <p>{@link BaggagePropagation} always allocates a holder for the baggage values, even when the
+ * header is absent, as a value could still be set later in the request. {@link
+ * UserNamePropagation} skips the holder when the header is absent. Run with {@code -prof gc} to see
+ * the difference in B/op.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class BaggagePropagationBenchmarks {
+  static final Propagation.Getter<Map<String, String>, String> GETTER =
+      new Propagation.Getter<Map<String, String>, String>() {
+        @Override public String get(Map<String, String> request, String key) {
+          return request.get(key);
+        }
+      };
+  static final Propagation.Setter<Map<String, String>, String> SETTER =
+      new Propagation.Setter<Map<String, String>, String>() {
+        @Override public void put(Map<String, String> request, String key, String value) {
+          request.put(key, value);
+        }
+      };
+
+  static final TraceContext.Extractor<Map<String, String>> B3_EXTRACTOR =
+      B3Propagation.FACTORY.get().extractor(GETTER);
+  static final TraceContext.Injector<Map<String, String>> B3_INJECTOR =
+      B3Propagation.FACTORY.get().injector(SETTER);
+  static final Propagation<String> BAGGAGE = BaggagePropagation.newFactoryBuilder(
+      TracePropagation.create(TracePropagation.Format.B3_MULTI))
+      .add(SingleBaggageField.newBuilder(TracingConfiguration.USER_NAME)
+          .addKeyName("user_name").build())
+      .build().get();
+  static final TraceContext.Extractor<Map<String, String>> BAGGAGE_EXTRACTOR =
+      BAGGAGE.extractor(GETTER);
+  static final TraceContext.Injector<Map<String, String>> BAGGAGE_INJECTOR =
+      BAGGAGE.injector(SETTER);
+  static final Propagation<String> USER_NAME =
+      new TracingConfiguration().propagationFactory().get();
+  static final TraceContext.Extractor<Map<String, String>> USER_NAME_EXTRACTOR =
+      USER_NAME.extractor(GETTER);
+  static final TraceContext.Injector<Map<String, String>> USER_NAME_INJECTOR =
+      USER_NAME.injector(SETTER);
+
+  /** Headers of a traced request from the frontend to the backend */
+  static final Map<String, String> B3_HEADERS = new LinkedHashMap<>();
+  static final Map<String, String> BAGGAGE_HEADERS = new LinkedHashMap<>();
+
+  static {
+    B3_HEADERS.put("x-b3-traceid", "86154a4ba6e91385");
+    B3_HEADERS.put("x-b3-parentspanid", "86154a4ba6e91385");
+    B3_HEADERS.put("x-b3-spanid", "4d1e00c0db9010db");
+    B3_HEADERS.put("x-b3-sampled", "1");
+    BAGGAGE_HEADERS.putAll(B3_HEADERS);
+    BAGGAGE_HEADERS.put("user_name", "romeo");
+  }
+
+  static final TraceContext B3_CONTEXT = B3_EXTRACTOR.extract(B3_HEADERS).context();
+  static final TraceContext BAGGAGE_CONTEXT =
+      BAGGAGE_EXTRACTOR.extract(BAGGAGE_HEADERS).context();
+  static final TraceContext USER_NAME_CONTEXT =
+      USER_NAME_EXTRACTOR.extract(BAGGAGE_HEADERS).context();
+
+  // Reused, so that injection only allocates what the propagation does
+  final Map<String, String> outgoing = new LinkedHashMap<>();
+
+  @Benchmark public TraceContextOrSamplingFlags extract_b3() {
+    return B3_EXTRACTOR.extract(B3_HEADERS);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_baggage_absent() {
+    return BAGGAGE_EXTRACTOR.extract(B3_HEADERS);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_baggage_present() {
+    return BAGGAGE_EXTRACTOR.extract(BAGGAGE_HEADERS);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_userName_absent() {
+    return USER_NAME_EXTRACTOR.extract(B3_HEADERS);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_userName_present() {
+    return USER_NAME_EXTRACTOR.extract(BAGGAGE_HEADERS);
+  }
+
+  @Benchmark public Map<String, String> inject_b3() {
+    B3_INJECTOR.inject(B3_CONTEXT, outgoing);
+    return outgoing;
+  }
+
+  @Benchmark public Map<String, String> inject_baggage() {
+    BAGGAGE_INJECTOR.inject(BAGGAGE_CONTEXT, outgoing);
+    return outgoing;
+  }
+
+  @Benchmark public Map<String, String> inject_userName() {
+    USER_NAME_INJECTOR.inject(USER_NAME_CONTEXT, outgoing);
+    return outgoing;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + BaggagePropagationBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
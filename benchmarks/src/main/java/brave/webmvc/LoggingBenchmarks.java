@@ -0,0 +1,139 @@
+package brave.webmvc;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.Propagation;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares what {@link Frontend} pays per request to log its result with trace correlation,
+ * before and after webmvc4 moved to async, garbage-free log4j2.
+ *
+ * <p>Each operation opens a scope for a trace with user name baggage, which puts the correlation
+ * fields into log4j's {@code ThreadContext}, logs one line and closes the scope. The "before" forks
+ * override webmvc4's {@code log4j2.component.properties} back to log4j's defaults, and log with
+ * location in the pattern. Both write to {@code target/logging-benchmarks.log}, so that the
+ * console isn't what is measured.
+ *
+ * <p>The async numbers are the cost to the request thread. Log faster than the background thread
+ * can write for long enough, and the ring buffer fills, so callers wait for it instead.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class LoggingBenchmarks {
+  static final String RESULT = "Wed Jan 01 00:00:00 UTC 2020 romeo";
+  static final Logger log = LoggerFactory.getLogger(Frontend.class);
+
+  Tracing tracing;
+  CurrentTraceContext currentTraceContext;
+  TraceContext context;
+
+  @Setup public void init() {
+    // Reuse the example's propagation and log correlation, so the same fields are in scope.
+    TracingConfiguration config = new TracingConfiguration();
+    tracing = Tracing.newBuilder()
+        .propagationFactory(config.propagationFactory())
+        .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+            .addScopeDecorator(config.correlationScopeDecorator())
+            .build()
+        ).build();
+    currentTraceContext = tracing.currentTraceContext();
+
+    // As a request from the frontend's caller, so the user name is baggage like in the example
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("x-b3-traceid", "86154a4ba6e91385");
+    headers.put("x-b3-spanid", "4d1e00c0db9010db");
+    headers.put("x-b3-sampled", "1");
+    headers.put("user_name", "romeo");
+    Span span = tracing.tracer().nextSpan(tracing.propagation().extractor(
+        new Propagation.Getter<Map<String, String>, String>() {
+          @Override public String get(Map<String, String> request, String key) {
+            return request.get(key);
+          }
+        }).extract(headers));
+    context = span.context();
+    if (!"romeo".equals(TracingConfiguration.USER_NAME.getValue(context))) {
+      throw new IllegalStateException("userName wasn't extracted, so it wouldn't be logged");
+    }
+  }
+
+  @TearDown public void close() {
+    tracing.close();
+  }
+
+  @Benchmark @Fork(value = 3, jvmArgsAppend = {
+      "-Dlog4j.configurationFile=log4j2-logging-sync.properties",
+      "-Dlog4j2.contextSelector=org.apache.logging.log4j.core.selector.ClassLoaderContextSelector",
+      "-Dlog4j2.isWebapp=true",
+      "-Dlog4j2.garbagefreeThreadContextMap=false"
+  })
+  public void request_before() {
+    logRequest();
+  }
+
+  @Benchmark @Fork(value = 3, jvmArgsAppend = {
+      "-Dlog4j.configurationFile=log4j2-logging-async.properties"
+  })
+  public void request_after() {
+    logRequest();
+  }
+
+  /** Only the scope's {@code ThreadContext} updates, with the map that copies on each put */
+  @Benchmark @Fork(value = 3, jvmArgsAppend = {
+      "-Dlog4j.configurationFile=log4j2-logging-sync.properties",
+      "-Dlog4j2.isWebapp=true",
+      "-Dlog4j2.garbagefreeThreadContextMap=false"
+  })
+  public void scope_before() {
+    currentTraceContext.newScope(context).close();
+  }
+
+  /** Only the scope's {@code ThreadContext} updates, with the map updated in place */
+  @Benchmark @Fork(value = 3, jvmArgsAppend = {
+      "-Dlog4j.configurationFile=log4j2-logging-async.properties"
+  })
+  public void scope_after() {
+    currentTraceContext.newScope(context).close();
+  }
+
+  void logRequest() {
+    try (CurrentTraceContext.Scope scope = currentTraceContext.newScope(context)) {
+      log.info("result={};", RESULT);
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + LoggingBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
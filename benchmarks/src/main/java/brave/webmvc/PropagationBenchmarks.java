@@ -0,0 +1,107 @@
+package brave.webmvc;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.webmvc.TracePropagation.Format;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the cost per hop of each {@code zipkin.propagation} format: injecting trace headers
+ * into the frontend's call, and extracting them in the backend.
+ *
+ * <p>Run {@link #main(String[])} to also print header bytes per format.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PropagationBenchmarks {
+  static final Propagation.Getter<Map<String, String>, String> GETTER =
+      new Propagation.Getter<Map<String, String>, String>() {
+        @Override public String get(Map<String, String> request, String key) {
+          return request.get(key);
+        }
+      };
+  static final Propagation.Setter<Map<String, String>, String> SETTER =
+      new Propagation.Setter<Map<String, String>, String>() {
+        @Override public void put(Map<String, String> request, String key, String value) {
+          request.put(key, value);
+        }
+      };
+
+  /** The frontend's client span, as in {@link SpanEncodingBenchmarks#CLIENT_SPAN} */
+  static final TraceContext CONTEXT = TraceContext.newBuilder()
+      .traceId(0x86154a4ba6e91385L)
+      .parentId(0x86154a4ba6e91385L)
+      .spanId(0x4d1e00c0db9010dbL)
+      .sampled(true)
+      .build();
+
+  @Param Format format;
+
+  TraceContext.Injector<Map<String, String>> injector;
+  TraceContext.Extractor<Map<String, String>> extractor;
+  Map<String, String> incoming;
+  // Reused, so that injection only allocates what the propagation does
+  final Map<String, String> outgoing = new LinkedHashMap<>();
+
+  @Setup public void init() {
+    Propagation<String> propagation = TracePropagation.create(format).get();
+    injector = propagation.injector(SETTER);
+    extractor = propagation.extractor(GETTER);
+    incoming = headers(format);
+  }
+
+  @Benchmark public Map<String, String> inject() {
+    injector.inject(CONTEXT, outgoing);
+    return outgoing;
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract() {
+    return extractor.extract(incoming);
+  }
+
+  static Map<String, String> headers(Format format) {
+    Map<String, String> result = new LinkedHashMap<>();
+    TracePropagation.create(format).get().injector(SETTER).inject(CONTEXT, result);
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    for (Format format : Format.values()) {
+      int bytes = 0;
+      for (Map.Entry<String, String> header : headers(format).entrySet()) {
+        bytes += header.getKey().length() + 2 + header.getValue().length() + 2; // ": " and CRLF
+      }
+      System.out.printf("%s: %s = %d bytes%n", format, headers(format), bytes);
+    }
+
+    Options opt = new OptionsBuilder()
+        .include(".*" + PropagationBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,153 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+/**
+ * Measures how long {@link ShardingSpanHandler} takes to pick a collector for a span, with all
+ * shards healthy and with the first one failing, so that its traces walk the ring further.
+ *
+ * <p>Run {@link #main(String[])} to also send spans to in-memory stub collectors and print how
+ * they spread, and how many move when one collector fails.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ShardingBenchmarks {
+  static final int TRACE_IDS = 1024; // a power of two
+
+  @Param({"2", "8"}) int shards;
+
+  ShardingSpanHandler handler, failingHandler;
+  final long[] traceIds = new long[TRACE_IDS];
+  int next;
+
+  @Setup public void init() {
+    handler = newHandler(stubs(shards));
+    failingHandler = newHandler(stubs(shards));
+    fail(failingHandler.shards[0]);
+    Random random = new Random(1L);
+    for (int i = 0; i < TRACE_IDS; i++) traceIds[i] = random.nextLong();
+  }
+
+  @TearDown public void close() {
+    handler.close();
+    failingHandler.close();
+  }
+
+  @Benchmark public Object shard_healthy() {
+    return handler.shard(traceIds[next++ & (TRACE_IDS - 1)]);
+  }
+
+  @Benchmark public Object shard_oneFailing() {
+    return failingHandler.shard(traceIds[next++ & (TRACE_IDS - 1)]);
+  }
+
+  static StubCollector[] stubs(int count) {
+    StubCollector[] result = new StubCollector[count];
+    for (int i = 0; i < count; i++) result[i] = new StubCollector();
+    return result;
+  }
+
+  static ShardingSpanHandler newHandler(StubCollector[] stubs) {
+    ShardingSpanHandler.Builder builder = ShardingSpanHandler.newBuilder();
+    for (int i = 0; i < stubs.length; i++) {
+      builder.addShard("http://collector-" + i + ":9411/api/v2/spans", stubs[i]);
+    }
+    return builder.build();
+  }
+
+  static void fail(ShardingSpanHandler.Shard shard) {
+    for (int i = 0; i < shard.failureThreshold; i++) shard.failed(new IOException("stub failure"));
+  }
+
+  /** Accepts messages in memory, counting their spans */
+  static final class StubCollector extends Sender {
+    final AtomicLong spans = new AtomicLong();
+
+    @Override public Encoding encoding() {
+      return Encoding.JSON;
+    }
+
+    @Override public int messageMaxBytes() {
+      return 5 * 1024 * 1024;
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return Encoding.JSON.listSizeInBytes(encodedSpans);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      spans.addAndGet(encodedSpans.size());
+      return Call.create(null);
+    }
+  }
+
+  /** Sends the same spans to four stub collectors, then again with the first failing. */
+  static void printSpread() {
+    Random random = new Random(1L);
+    long[] traceIds = new long[20000];
+    for (int i = 0; i < traceIds.length; i++) traceIds[i] = random.nextLong();
+
+    StubCollector[] healthy = stubs(4), oneFailing = stubs(4);
+    ShardingSpanHandler healthyHandler = newHandler(healthy);
+    ShardingSpanHandler failingHandler = newHandler(oneFailing);
+    fail(failingHandler.shards[0]);
+    for (long traceId : traceIds) {
+      TraceContext context = TraceContext.newBuilder()
+          .traceId(traceId).spanId(traceId).sampled(true).build();
+      MutableSpan span = new MutableSpan(context, null);
+      span.name("get");
+      span.startTimestamp(1L);
+      span.finishTimestamp(2L);
+      healthyHandler.end(context, span, Cause.FINISHED);
+      failingHandler.end(context, span, Cause.FINISHED);
+    }
+    healthyHandler.close(); // flushes
+    failingHandler.close();
+
+    for (int i = 0; i < healthy.length; i++) {
+      System.out.printf("collector-%d: %d spans, %d with collector-0 failing%n",
+          i, healthy[i].spans.get(), oneFailing[i].spans.get());
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    printSpread();
+
+    Options opt = new OptionsBuilder()
+        .include(".*" + ShardingBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,140 @@
+package brave.webmvc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Compares encoder CPU per span for the {@code zipkin.encoding} choices, using spans shaped like
+ * those the examples report for one {@code GET /} on the frontend.
+ *
+ * <p>Run {@link #main(String[])} to also print bytes on the wire, as JMH only reports time and
+ * allocation.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SpanEncodingBenchmarks {
+  static final Endpoint FRONTEND = Endpoint.newBuilder()
+      .serviceName("frontend").ip("172.17.0.13").build();
+  static final Endpoint BACKEND = Endpoint.newBuilder()
+      .serviceName("backend").ip("172.17.0.14").build();
+
+  /** The frontend server span, tagged by the servlet filter and MVC interceptor */
+  static final Span SERVER_SPAN = Span.newBuilder()
+      .traceId("86154a4ba6e91385").id("86154a4ba6e91385")
+      .kind(Span.Kind.SERVER)
+      .name("get /")
+      .localEndpoint(FRONTEND)
+      .remoteEndpoint(Endpoint.newBuilder().ip("110.170.201.178").port(63596).build())
+      .timestamp(1472470996199000L).duration(207000L)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/")
+      .putTag("mvc.controller.class", "Frontend")
+      .putTag("mvc.controller.method", "callBackend")
+      .build();
+
+  /** The frontend's call to the backend, from {@code TracingHttpClientBuilder} */
+  static final Span CLIENT_SPAN = Span.newBuilder()
+      .traceId("86154a4ba6e91385").parentId("86154a4ba6e91385").id("4d1e00c0db9010db")
+      .kind(Span.Kind.CLIENT)
+      .name("get")
+      .localEndpoint(FRONTEND)
+      .remoteEndpoint(Endpoint.newBuilder().ip("127.0.0.1").port(9000).build())
+      .timestamp(1472470996238000L).duration(165000L)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/api")
+      .build();
+
+  /** The backend's side of the same call, which shares the client's span ID */
+  static final Span BACKEND_SPAN = Span.newBuilder()
+      .traceId("86154a4ba6e91385").parentId("86154a4ba6e91385").id("4d1e00c0db9010db")
+      .kind(Span.Kind.SERVER)
+      .name("get /api")
+      .localEndpoint(BACKEND)
+      .remoteEndpoint(Endpoint.newBuilder().ip("172.17.0.13").port(51454).build())
+      .timestamp(1472470996250000L).duration(140000L)
+      .shared(true)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/api")
+      .putTag("mvc.controller.class", "Backend")
+      .putTag("mvc.controller.method", "printDate")
+      .build();
+
+  /** A typical message from {@code AsyncZipkinSpanHandler}: many requests' spans at once */
+  static final List<Span> MESSAGE = new ArrayList<Span>();
+
+  static {
+    for (int i = 0; i < 100; i++) {
+      MESSAGE.add(SERVER_SPAN);
+      MESSAGE.add(CLIENT_SPAN);
+      MESSAGE.add(BACKEND_SPAN);
+    }
+  }
+
+  @Benchmark public byte[] serverSpan_json() {
+    return SpanBytesEncoder.JSON_V2.encode(SERVER_SPAN);
+  }
+
+  @Benchmark public byte[] serverSpan_proto3() {
+    return SpanBytesEncoder.PROTO3.encode(SERVER_SPAN);
+  }
+
+  @Benchmark public int serverSpan_sizeInBytes_json() {
+    return SpanBytesEncoder.JSON_V2.sizeInBytes(SERVER_SPAN);
+  }
+
+  @Benchmark public int serverSpan_sizeInBytes_proto3() {
+    return SpanBytesEncoder.PROTO3.sizeInBytes(SERVER_SPAN);
+  }
+
+  /** Divide by 300 for the cost per span when batched */
+  @Benchmark public byte[] message_json() {
+    return SpanBytesEncoder.JSON_V2.encodeList(MESSAGE);
+  }
+
+  @Benchmark public byte[] message_proto3() {
+    return SpanBytesEncoder.PROTO3.encodeList(MESSAGE);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    for (SpanBytesEncoder encoder : new SpanBytesEncoder[] {
+        SpanBytesEncoder.JSON_V2, SpanBytesEncoder.PROTO3
+    }) {
+      System.out.printf("%s: server=%d client=%d backend=%d message(%d spans)=%d bytes%n",
+          encoder.encoding(),
+          encoder.sizeInBytes(SERVER_SPAN),
+          encoder.sizeInBytes(CLIENT_SPAN),
+          encoder.sizeInBytes(BACKEND_SPAN),
+          MESSAGE.size(),
+          encoder.encodeList(MESSAGE).length);
+    }
+
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanEncodingBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
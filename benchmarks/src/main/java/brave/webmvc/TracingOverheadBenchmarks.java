@@ -0,0 +1,215 @@
+package brave.webmvc;
+
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.http.HttpTracing;
+import brave.httpclient.TracingHttpClientBuilder;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import brave.servlet.TracingFilter;
+import brave.spring.webmvc.SpanCustomizingAsyncHandlerInterceptor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Filter;
+import org.apache.http.client.HttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.AnnotatedBeanDefinitionReader;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Drives {@link Frontend#callBackend()} and {@link Backend#printDate} through a real
+ * {@linkplain DispatcherServlet}, using mock servlet requests instead of a container.
+ *
+ * <p>The frontend's call to the backend goes over loopback to a stub server on an ephemeral port,
+ * passed as {@code backend.url}, which dispatches back into the same servlet. This means a {@link
+ * #frontend_callBackend()} operation includes two server spans and one client span, just like the
+ * deployed example.
+ *
+ * <p>The three {@link Mode modes} isolate instrumentation cost from sampling cost. Spans are
+ * handed to a handler that drops them, so reporting to Zipkin is not part of these numbers. Run
+ * with {@code -prof gc} to get B/op ({@code gc.alloc.rate.norm}).
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.properties")
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TracingOverheadBenchmarks {
+  public enum Mode {
+    /** No filter, interceptor or client instrumentation. This is the baseline. */
+    UNTRACED,
+    /** Instrumentation installed and every request is sampled. */
+    SAMPLED,
+    /** Instrumentation installed, but the sampler rate is 0%. */
+    UNSAMPLED
+  }
+
+  /** Accepts spans, but doesn't encode or send them anywhere. */
+  static final SpanHandler DROP = new SpanHandler() {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      return true;
+    }
+  };
+
+  @Param Mode mode;
+
+  Tracing tracing;
+  GenericWebApplicationContext context;
+  DispatcherServlet dispatcher;
+  Filter[] filters;
+  HttpServer backend;
+
+  @Setup public void init() throws Exception {
+    // Otherwise, the frontend would answer from its caches instead of calling the backend.
+    System.setProperty("frontend.cache.ttl", "0");
+    System.setProperty("frontend.httpCache.maximumSize", "0");
+    // Any free port, so that this can run beside the examples or another fork
+    backend = HttpServer.create(new InetSocketAddress(0), 0);
+    System.setProperty("backend.url",
+        "http://localhost:" + backend.getAddress().getPort() + "/api");
+
+    MockServletContext servletContext = new MockServletContext();
+    context = new GenericWebApplicationContext(servletContext);
+    AnnotatedBeanDefinitionReader reader = new AnnotatedBeanDefinitionReader(context);
+    reader.register(AppConfiguration.class, Frontend.class, Backend.class);
+
+    if (mode == Mode.UNTRACED) {
+      filters = new Filter[0];
+    } else {
+      // Reuse the example's propagation and log correlation, as those are paid per request.
+      TracingConfiguration config = new TracingConfiguration();
+      tracing = Tracing.newBuilder()
+          .localServiceName("benchmarks")
+          .sampler(mode == Mode.SAMPLED ? Sampler.ALWAYS_SAMPLE : Sampler.NEVER_SAMPLE)
+          .propagationFactory(config.propagationFactory())
+          .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+              .addScopeDecorator(config.correlationScopeDecorator())
+              .build()
+          )
+          .addSpanHandler(DROP).build();
+      HttpTracing httpTracing = HttpTracing.create(tracing);
+      context.getBeanFactory().registerSingleton("httpTracing", httpTracing);
+      reader.register(BenchmarkTracingConfiguration.class);
+      // DelegatingTracingFilter looks up HttpTracing and then does exactly this
+      filters = new Filter[] {TracingFilter.create(httpTracing)};
+    }
+
+    context.refresh();
+    dispatcher = new DispatcherServlet(context);
+    dispatcher.init(new MockServletConfig(servletContext, "dispatcher"));
+
+    backend.createContext("/api", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+          for (String value : header.getValue()) request.addHeader(header.getKey(), value);
+        }
+        MockHttpServletResponse response;
+        try {
+          response = service(request);
+        } catch (Exception e) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+        for (String name : response.getHeaderNames()) {
+          exchange.getResponseHeaders().put(name, response.getHeaders(name));
+        }
+        byte[] body = response.getContentAsByteArray();
+        exchange.sendResponseHeaders(response.getStatus(), body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    backend.start();
+  }
+
+  @TearDown public void close() {
+    backend.stop(0);
+    dispatcher.destroy();
+    context.close();
+    if (tracing != null) tracing.close();
+  }
+
+  /** The whole chain: frontend server span, client span and backend server span. */
+  @Benchmark public String frontend_callBackend() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+    request.addHeader("user_name", "bob");
+    return service(request).getContentAsString();
+  }
+
+  /** Only the backend server span, as if called by an uninstrumented client. */
+  @Benchmark public String backend_printDate() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+    request.addHeader("user_name", "bob");
+    return service(request).getContentAsString();
+  }
+
+  MockHttpServletResponse service(MockHttpServletRequest request) throws Exception {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    new MockFilterChain(dispatcher, filters).doFilter(request, response);
+    return response;
+  }
+
+  /** The client and interceptor from {@link TracingConfiguration}, without the Zipkin beans. */
+  @Configuration
+  @Import(SpanCustomizingAsyncHandlerInterceptor.class)
+  static class BenchmarkTracingConfiguration extends WebMvcConfigurerAdapter {
+    @Bean HttpClient httpClient(HttpTracing httpTracing, ConnectionPool connectionPool) {
+      return connectionPool.configure(TracingHttpClientBuilder.create(httpTracing)).build();
+    }
+
+    @Autowired SpanCustomizingAsyncHandlerInterceptor serverInterceptor;
+
+    @Override public void addInterceptors(InterceptorRegistry registry) {
+      registry.addInterceptor(serverInterceptor);
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + TracingOverheadBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,224 @@
+package brave.webmvc;
+
+import brave.Tracing;
+import brave.baggage.BaggageField;
+import brave.baggage.BaggagePropagation;
+import brave.baggage.BaggagePropagationConfig.SingleBaggageField;
+import brave.baggage.CorrelationScopeConfig.SingleCorrelationField;
+import brave.context.log4j12.MDCScopeDecorator;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.http.HttpTracing;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import brave.servlet.TracingFilter;
+import brave.webmvc.TracePropagation.Format;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * Drives webmvc25's {@link Frontend#callBackend} and {@link Backend#printDate} through a real
+ * {@linkplain DispatcherServlet}, using mock servlet requests instead of a container. This is the
+ * same measurement as the webmvc4 benchmarks in {@code ../..}, on Spring 2.5.
+ *
+ * <p>The servlet context is {@code benchmark-servlet.xml} plus {@code traced-client.xml} or
+ * {@code untraced-client.xml}, which declare what the example's {@code spring-webmvc-servlet.xml}
+ * does, except that {@link ConditionalGetClient} keeps no responses. The frontend's call to the
+ * backend goes over loopback to a stub server on an ephemeral port, which dispatches back into the
+ * same servlet. So, a {@link #frontend_callBackend()} operation includes two server spans and one
+ * client span, just like the deployed example.
+ *
+ * <p>Tracing is configured as in the example's {@code applicationContext.xml}, except the sampler
+ * depends on the {@link Mode} and spans are dropped instead of reported to Zipkin. Run with {@code
+ * -prof gc} to get B/op ({@code gc.alloc.rate.norm}).
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TracingOverheadBenchmarks {
+  public enum Mode {
+    /** No filter, interceptor or client instrumentation. This is the baseline. */
+    UNTRACED,
+    /** Instrumentation installed and every request is sampled. */
+    SAMPLED,
+    /** Instrumentation installed, but the sampler rate is 0%. */
+    UNSAMPLED
+  }
+
+  /** Accepts spans, but doesn't encode or send them anywhere. */
+  static final SpanHandler DROP = new SpanHandler() {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      return true;
+    }
+  };
+
+  @Param Mode mode;
+
+  Tracing tracing;
+  GenericWebApplicationContext root;
+  DispatcherServlet dispatcher;
+  Filter filter;
+  HttpServer backend;
+
+  @Setup public void init() throws Exception {
+    // Any free port, so that this can run beside the examples or another fork
+    backend = HttpServer.create(new InetSocketAddress(0), 0);
+    System.setProperty("backend.url",
+        "http://localhost:" + backend.getAddress().getPort() + "/api");
+
+    // The beans the servlet context needs from applicationContext.xml
+    MockServletContext servletContext = new MockServletContext();
+    root = new GenericWebApplicationContext();
+    root.setServletContext(servletContext);
+    BaggageField userName = BaggageField.create("userName");
+    root.getBeanFactory().registerSingleton("userNameBaggageField", userName);
+
+    String clientConfig;
+    if (mode == Mode.UNTRACED) {
+      clientConfig = "classpath:untraced-client.xml";
+    } else {
+      tracing = Tracing.newBuilder()
+          .localServiceName("benchmarks")
+          .sampler(mode == Mode.SAMPLED ? Sampler.ALWAYS_SAMPLE : Sampler.NEVER_SAMPLE)
+          .propagationFactory(BaggagePropagation.newFactoryBuilder(
+              TracePropagation.create(Format.B3_MULTI))
+              .add(SingleBaggageField.newBuilder(userName).addKeyName("user_name").build())
+              .build())
+          .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+              .addScopeDecorator(MDCScopeDecorator.newBuilder()
+                  .add(SingleCorrelationField.create(userName)).build())
+              .build()
+          )
+          .addSpanHandler(DROP).build();
+      HttpTracing httpTracing = HttpTracing.create(tracing);
+      root.getBeanFactory().registerSingleton("httpTracing", httpTracing);
+      // DelegatingTracingFilter looks up HttpTracing and then does exactly this
+      filter = TracingFilter.create(httpTracing);
+      clientConfig = "classpath:traced-client.xml";
+    }
+    root.refresh();
+    servletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, root);
+
+    // Spring 2.5's DispatcherServlet creates its own context, as it does from web.xml
+    dispatcher = new DispatcherServlet();
+    MockServletConfig servletConfig = new MockServletConfig(servletContext, "spring-webmvc");
+    servletConfig.addInitParameter("contextConfigLocation",
+        clientConfig + ",classpath:benchmark-servlet.xml");
+    dispatcher.init(servletConfig);
+
+    backend.createContext("/api", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+          for (String value : header.getValue()) request.addHeader(header.getKey(), value);
+        }
+        MockHttpServletResponse response;
+        try {
+          response = service(request);
+        } catch (Exception e) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+        // Spring 2.5's mock response isn't generic
+        for (Object name : response.getHeaderNames()) {
+          for (Object value : response.getHeaders((String) name)) {
+            exchange.getResponseHeaders().add((String) name, String.valueOf(value));
+          }
+        }
+        byte[] body = response.getContentAsByteArray();
+        exchange.sendResponseHeaders(response.getStatus(), body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    backend.start();
+  }
+
+  @TearDown public void close() {
+    backend.stop(0);
+    dispatcher.destroy();
+    root.close();
+    if (tracing != null) tracing.close();
+  }
+
+  /** The whole chain: frontend server span, client span and backend server span. */
+  @Benchmark public String frontend_callBackend() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+    request.addHeader("user_name", "bob");
+    return service(request).getContentAsString();
+  }
+
+  /** Only the backend server span, as if called by an uninstrumented client. */
+  @Benchmark public String backend_printDate() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+    request.addHeader("user_name", "bob");
+    return service(request).getContentAsString();
+  }
+
+  /** Spring 2.5's mock filter chain doesn't invoke a servlet, so this is one that does. */
+  MockHttpServletResponse service(MockHttpServletRequest request) throws Exception {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    FilterChain servlet = new FilterChain() {
+      @Override public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        dispatcher.service(request, response);
+      }
+    };
+    if (filter != null) {
+      filter.doFilter(request, response, servlet);
+    } else {
+      servlet.doFilter(request, response);
+    }
+    return response;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + TracingOverheadBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
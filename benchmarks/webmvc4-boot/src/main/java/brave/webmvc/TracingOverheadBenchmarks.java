@@ -0,0 +1,260 @@
+package brave.webmvc;
+
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.http.HttpTracing;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * Drives webmvc4-boot's {@link Frontend#callBackend()} and {@link Backend#printDate} through the
+ * {@linkplain DispatcherServlet} and filters Spring Boot configures, using mock servlet requests
+ * instead of an embedded Tomcat. This is the same measurement as the webmvc4 benchmarks in {@code
+ * ../..}.
+ *
+ * <p>As in the example, the frontend and backend are separate applications. The frontend's call
+ * to the backend goes over loopback to a stub server on an ephemeral port, passed as {@code
+ * --backend.url}, which dispatches into the backend's servlet. So, a {@link
+ * #frontend_callBackend()} operation includes two server spans and one client span.
+ *
+ * <p>{@link TracingConfiguration} is auto-configured as in the example, except its tracer is
+ * replaced by one whose sampler depends on the {@link Mode} and that drops spans instead of
+ * reporting them to Zipkin. When untraced, it is excluded, so the rest template uses Spring Boot's
+ * default http client. Run with {@code -prof gc} to get B/op ({@code gc.alloc.rate.norm}).
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TracingOverheadBenchmarks {
+  public enum Mode {
+    /** No filter, interceptor or client instrumentation. This is the baseline. */
+    UNTRACED,
+    /** Instrumentation installed and every request is sampled. */
+    SAMPLED,
+    /** Instrumentation installed, but the sampler rate is 0%. */
+    UNSAMPLED
+  }
+
+  /** Accepts spans, but doesn't encode or send them anywhere. */
+  static final SpanHandler DROP = new SpanHandler() {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      return true;
+    }
+  };
+
+  @Param Mode mode;
+
+  Tracing tracing;
+  App frontend, backend;
+  HttpServer backendServer;
+
+  @Setup public void init() throws Exception {
+    // Any free port, so that this can run beside the examples or another fork
+    backendServer = HttpServer.create(new InetSocketAddress(0), 0);
+
+    HttpTracing httpTracing = null;
+    if (mode != Mode.UNTRACED) {
+      // Reuse the example's propagation and log correlation, as those are paid per request.
+      TracingConfiguration config = new TracingConfiguration();
+      tracing = Tracing.newBuilder()
+          .localServiceName("benchmarks")
+          .sampler(mode == Mode.SAMPLED ? Sampler.ALWAYS_SAMPLE : Sampler.NEVER_SAMPLE)
+          .propagationFactory(config.propagationFactory())
+          .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+              .addScopeDecorator(config.correlationScopeDecorator())
+              .build()
+          )
+          .addSpanHandler(DROP).build();
+      httpTracing = HttpTracing.create(tracing);
+    }
+
+    backend = App.start(Backend.class, httpTracing, "--spring.application.name=backend");
+    frontend = App.start(Frontend.class, httpTracing, "--spring.application.name=frontend",
+        "--backend.url=http://localhost:" + backendServer.getAddress().getPort() + "/api",
+        // Every request should reach the backend, not the frontend's http cache
+        "--frontend.httpCache.maximumSize=0");
+
+    backendServer.createContext("/api", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+          for (String value : header.getValue()) request.addHeader(header.getKey(), value);
+        }
+        MockHttpServletResponse response;
+        try {
+          response = backend.service(request);
+        } catch (Exception e) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+        for (String name : response.getHeaderNames()) {
+          exchange.getResponseHeaders().put(name, response.getHeaders(name));
+        }
+        byte[] body = response.getContentAsByteArray();
+        exchange.sendResponseHeaders(response.getStatus(), body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    backendServer.start();
+  }
+
+  @TearDown public void close() {
+    backendServer.stop(0);
+    frontend.close();
+    backend.close();
+    if (tracing != null) tracing.close();
+  }
+
+  /** The whole chain: frontend server span, client span and backend server span. */
+  @Benchmark public String frontend_callBackend() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+    request.addHeader("user_name", "bob");
+    return frontend.service(request).getContentAsString();
+  }
+
+  /** Only the backend server span, as if called by an uninstrumented client. */
+  @Benchmark public String backend_printDate() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+    request.addHeader("user_name", "bob");
+    return backend.service(request).getContentAsString();
+  }
+
+  /** A Spring Boot application in a mock servlet context, with its dispatcher and filters */
+  static final class App {
+    /**
+     * Runs the application like Spring Boot's mock web environment for tests does. When tracing
+     * is null, {@link TracingConfiguration} is excluded.
+     */
+    static App start(Class<?> source, final HttpTracing httpTracing, String... args)
+        throws ServletException {
+      final MockServletContext servletContext = new MockServletContext();
+      SpringApplication application = new SpringApplication(source);
+      application.setWebEnvironment(true);
+      application.setApplicationContextClass(GenericWebApplicationContext.class);
+      application.addInitializers(
+          new ApplicationContextInitializer<GenericWebApplicationContext>() {
+            @Override public void initialize(GenericWebApplicationContext context) {
+              context.setServletContext(servletContext);
+              if (httpTracing != null) {
+                context.addBeanFactoryPostProcessor(new UseTracing(httpTracing));
+              }
+            }
+          });
+
+      List<String> allArgs = new ArrayList<>();
+      allArgs.add("--spring.main.banner-mode=off");
+      allArgs.add("--logging.level.root=WARN");
+      if (httpTracing == null) {
+        allArgs.add("--spring.autoconfigure.exclude=" + TracingConfiguration.class.getName());
+      }
+      for (String arg : args) allArgs.add(arg);
+      ConfigurableApplicationContext context = application.run(allArgs.toArray(new String[0]));
+
+      // Boot adds these to Tomcat, so they run in the same order here
+      DispatcherServlet dispatcher = context.getBean(DispatcherServlet.class);
+      dispatcher.init(new MockServletConfig(servletContext, "dispatcherServlet"));
+      List<Filter> filters = new ArrayList<>(context.getBeansOfType(Filter.class).values());
+      AnnotationAwareOrderComparator.sort(filters);
+      return new App(context, dispatcher, filters.toArray(new Filter[0]));
+    }
+
+    final ConfigurableApplicationContext context;
+    final DispatcherServlet dispatcher;
+    final Filter[] filters;
+
+    App(ConfigurableApplicationContext context, DispatcherServlet dispatcher, Filter[] filters) {
+      this.context = context;
+      this.dispatcher = dispatcher;
+      this.filters = filters;
+    }
+
+    MockHttpServletResponse service(MockHttpServletRequest request) throws Exception {
+      MockHttpServletResponse response = new MockHttpServletResponse();
+      new MockFilterChain(dispatcher, filters).doFilter(request, response);
+      return response;
+    }
+
+    void close() {
+      dispatcher.destroy();
+      context.close();
+    }
+  }
+
+  /** Replaces the tracer and its Zipkin reporting in {@link TracingConfiguration} */
+  static final class UseTracing implements BeanFactoryPostProcessor {
+    final HttpTracing httpTracing;
+
+    UseTracing(HttpTracing httpTracing) {
+      this.httpTracing = httpTracing;
+    }
+
+    /** Runs after configuration classes, including auto-configuration, define their beans. */
+    @Override public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+      BeanDefinitionRegistry registry = (BeanDefinitionRegistry) beanFactory;
+      for (String name : new String[] {"sender", "zipkinSpanHandler", "tracing", "httpTracing"}) {
+        registry.removeBeanDefinition(name);
+      }
+      beanFactory.registerSingleton("tracing", httpTracing.tracing());
+      beanFactory.registerSingleton("httpTracing", httpTracing);
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + TracingOverheadBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
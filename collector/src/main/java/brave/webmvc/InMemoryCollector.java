@@ -0,0 +1,271 @@
+package brave.webmvc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Accepts spans as Zipkin does, and keeps them in an {@link InMemorySpanStore}, so that the
+ * examples and their reporters can be load tested on one machine without a Zipkin server.
+ *
+ * <p>{@code POST /api/v2/spans} takes JSON, PROTO3 or THRIFT span lists, optionally gzipped. Stored
+ * spans can be read back with {@code GET /api/v2/services}, {@code /api/v2/trace/{traceId}} and
+ * {@code /api/v2/traces?serviceName=&limit=}, which return the same JSON as Zipkin, though
+ * {@code /traces} doesn't support Zipkin's other query parameters. Ingest throughput is printed
+ * every {@code -DreportSeconds}, and the totals are served as text on {@code /stats}.
+ */
+public final class InMemoryCollector implements HttpHandler {
+  public static void main(String[] args) throws IOException {
+    int port = Integer.getInteger("port", 9411);
+    int maxSpans = Integer.getInteger("maxSpans", 500000);
+    int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    long reportSeconds = Long.getLong("reportSeconds", 10L);
+
+    final InMemoryCollector collector = start(port, maxSpans, threads);
+    System.out.printf("Accepting spans on http://localhost:%d/api/v2/spans, keeping up to %d%n",
+        collector.port(), maxSpans);
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      long lastNanos = System.nanoTime(), lastMessages, lastSpans, lastBytes;
+
+      @Override public void run() {
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+        long messages = collector.messages.get(), spans = collector.spans.get();
+        long bytes = collector.bytes.get();
+        System.out.printf("%8.0f messages/s %10.0f spans/s %10.1f KiB/s  %d spans in %d traces%n",
+            (messages - lastMessages) / seconds, (spans - lastSpans) / seconds,
+            (bytes - lastBytes) / seconds / 1024, collector.store.spanCount(),
+            collector.store.traceCount());
+        lastNanos = now;
+        lastMessages = messages;
+        lastSpans = spans;
+        lastBytes = bytes;
+      }
+    }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Starts listening on the port, or an ephemeral one if zero, for use inside another program. */
+  public static InMemoryCollector start(int port, int maxSpans, int threads) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+    InMemoryCollector result = new InMemoryCollector(server, new InMemorySpanStore(maxSpans),
+        Executors.newFixedThreadPool(threads));
+    server.start();
+    return result;
+  }
+
+  static final String SPANS_PATH = "/api/v2/spans", TRACE_PATH = "/api/v2/trace/";
+
+  final HttpServer server;
+  final InMemorySpanStore store;
+  final ExecutorService executor;
+  /** Totals of accepted messages, their spans and their bytes as received */
+  final AtomicLong messages = new AtomicLong(), spans = new AtomicLong(), bytes = new AtomicLong();
+  final AtomicLong malformedMessages = new AtomicLong();
+
+  InMemoryCollector(HttpServer server, InMemorySpanStore store, ExecutorService executor) {
+    this.server = server;
+    this.store = store;
+    this.executor = executor;
+    server.createContext("/", this);
+    server.setExecutor(executor);
+  }
+
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  public void close() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  @Override public void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod(), path = exchange.getRequestURI().getPath();
+      if (path.equals(SPANS_PATH) && method.equals("POST")) {
+        acceptSpans(exchange);
+      } else if (!method.equals("GET")) {
+        respond(exchange, 405, "text/plain", bytes("method not allowed"));
+      } else if (path.equals("/api/v2/services")) {
+        respond(exchange, 200, "application/json", json(store.getServiceNames()));
+      } else if (path.startsWith(TRACE_PATH)) {
+        List<Span> trace = store.getTrace(path.substring(TRACE_PATH.length()));
+        if (trace == null) {
+          respond(exchange, 404, "text/plain", bytes("trace not found"));
+        } else {
+          respond(exchange, 200, "application/json", SpanBytesEncoder.JSON_V2.encodeList(trace));
+        }
+      } else if (path.equals("/api/v2/traces")) {
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        String limit = query.get("limit");
+        List<List<Span>> traces = store.getTraces(query.get("serviceName"),
+            limit != null ? Integer.parseInt(limit) : 10);
+        respond(exchange, 200, "application/json", encodeTraces(traces));
+      } else if (path.equals("/stats")) {
+        respond(exchange, 200, "text/plain", bytes(stats()));
+      } else {
+        respond(exchange, 404, "text/plain", bytes("not found"));
+      }
+    } catch (IllegalArgumentException e) { // includes malformed numbers and trace IDs
+      respond(exchange, 400, "text/plain", bytes(String.valueOf(e.getMessage())));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  void acceptSpans(HttpExchange exchange) throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+    byte[] body;
+    if ("gzip".equals(contentEncoding)) {
+      try {
+        body = readAll(new GZIPInputStream(in));
+      } catch (IOException e) { // such as ZipException, when the body isn't gzip at all
+        malformedMessages.incrementAndGet();
+        throw new IllegalArgumentException("malformed gzip body: " + e.getMessage(), e);
+      }
+    } else {
+      body = readAll(in);
+    }
+    List<Span> decoded;
+    try {
+      decoded = body.length == 0 ? Collections.<Span>emptyList()
+          : decoder(contentType).decodeList(body);
+    } catch (IllegalArgumentException e) {
+      malformedMessages.incrementAndGet();
+      throw e;
+    }
+    store.accept(decoded);
+    messages.incrementAndGet();
+    spans.addAndGet(decoded.size());
+    bytes.addAndGet(in.count);
+    exchange.sendResponseHeaders(202, -1);
+  }
+
+  String stats() {
+    return "messages " + messages.get() + "\n"
+        + "spans " + spans.get() + "\n"
+        + "bytes " + bytes.get() + "\n"
+        + "malformed_messages " + malformedMessages.get() + "\n"
+        + "stored_spans " + store.spanCount() + "\n"
+        + "stored_traces " + store.traceCount() + "\n"
+        + "dropped_traces " + store.tracesDropped() + "\n";
+  }
+
+  static SpanBytesDecoder decoder(String contentType) {
+    if (contentType == null) return SpanBytesDecoder.JSON_V2;
+    if (contentType.startsWith("application/x-protobuf")) return SpanBytesDecoder.PROTO3;
+    if (contentType.startsWith("application/x-thrift")) return SpanBytesDecoder.THRIFT;
+    return SpanBytesDecoder.JSON_V2;
+  }
+
+  static byte[] encodeTraces(List<List<Span>> traces) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    result.write('[');
+    for (int i = 0; i < traces.size(); i++) {
+      if (i > 0) result.write(',');
+      byte[] trace = SpanBytesEncoder.JSON_V2.encodeList(traces.get(i));
+      result.write(trace, 0, trace.length);
+    }
+    result.write(']');
+    return result.toByteArray();
+  }
+
+  static byte[] json(List<String> values) {
+    StringBuilder result = new StringBuilder("[");
+    for (int i = 0; i < values.size(); i++) {
+      if (i > 0) result.append(',');
+      result.append('"');
+      String value = values.get(i);
+      for (int j = 0; j < value.length(); j++) {
+        char c = value.charAt(j);
+        if (c == '"' || c == '\\') result.append('\\');
+        result.append(c);
+      }
+      result.append('"');
+    }
+    return bytes(result.append(']').toString());
+  }
+
+  static Map<String, String> query(String rawQuery) throws IOException {
+    Map<String, String> result = new LinkedHashMap<>();
+    if (rawQuery == null) return result;
+    for (String parameter : rawQuery.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals == -1) continue;
+      result.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+          URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+    }
+    return result;
+  }
+
+  static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (InputStream closing = in) {
+      byte[] buffer = new byte[8192];
+      for (int read; (read = closing.read(buffer)) != -1; ) result.write(buffer, 0, read);
+    }
+    return result.toByteArray();
+  }
+
+  static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Counts bytes as received, before any decompression */
+  static final class CountingInputStream extends InputStream {
+    final InputStream delegate;
+    long count;
+
+    CountingInputStream(InputStream delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public int read() throws IOException {
+      int result = delegate.read();
+      if (result != -1) count++;
+      return result;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      int result = delegate.read(b, off, len);
+      if (result > 0) count += result;
+      return result;
+    }
+
+    @Override public void close() throws IOException {
+      delegate.close();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package brave.webmvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import zipkin2.Span;
+
+/**
+ * Keeps recent spans in memory, indexed by trace ID and by the services that reported them.
+ *
+ * <p>At most {@code maxSpans} are kept. Beyond that, whole traces are dropped, oldest first by when
+ * their first span arrived, so queries never return part of a trace due to the limit. Methods are
+ * synchronized: decoding, which dominates ingest, happens before spans get here.
+ */
+final class InMemorySpanStore {
+  final int maxSpans;
+  /** Trace IDs in the order their first span arrived */
+  final LinkedHashMap<String, List<Span>> traces = new LinkedHashMap<>();
+  final Map<String, LinkedHashSet<String>> traceIdsByService = new TreeMap<>();
+  int spanCount;
+  long tracesDropped;
+
+  InMemorySpanStore(int maxSpans) {
+    if (maxSpans < 1) throw new IllegalArgumentException("maxSpans < 1");
+    this.maxSpans = maxSpans;
+  }
+
+  synchronized void accept(List<Span> spans) {
+    for (Span span : spans) {
+      String traceId = span.traceId();
+      List<Span> trace = traces.get(traceId);
+      if (trace == null) traces.put(traceId, trace = new ArrayList<>());
+      trace.add(span);
+      spanCount++;
+      String service = span.localServiceName();
+      if (service == null) continue;
+      LinkedHashSet<String> traceIds = traceIdsByService.get(service);
+      if (traceIds == null) traceIdsByService.put(service, traceIds = new LinkedHashSet<>());
+      traceIds.add(traceId);
+    }
+    while (spanCount > maxSpans) dropOldestTrace();
+  }
+
+  void dropOldestTrace() {
+    Iterator<Map.Entry<String, List<Span>>> i = traces.entrySet().iterator();
+    Map.Entry<String, List<Span>> oldest = i.next();
+    i.remove();
+    spanCount -= oldest.getValue().size();
+    tracesDropped++;
+    for (Span span : oldest.getValue()) {
+      String service = span.localServiceName();
+      if (service == null) continue;
+      LinkedHashSet<String> traceIds = traceIdsByService.get(service);
+      if (traceIds == null) continue;
+      traceIds.remove(oldest.getKey());
+      if (traceIds.isEmpty()) traceIdsByService.remove(service);
+    }
+  }
+
+  /** Returns the spans of the trace, or null if there are none. */
+  synchronized List<Span> getTrace(String traceId) {
+    List<Span> trace = traces.get(Span.normalizeTraceId(traceId));
+    return trace != null ? new ArrayList<>(trace) : null;
+  }
+
+  /** Returns up to {@code limit} traces, newest first, with spans from the service if not null. */
+  synchronized List<List<Span>> getTraces(String serviceName, int limit) {
+    List<String> traceIds;
+    if (serviceName == null) {
+      traceIds = new ArrayList<>(traces.keySet());
+    } else {
+      LinkedHashSet<String> ofService = traceIdsByService.get(serviceName);
+      if (ofService == null) return Collections.emptyList();
+      traceIds = new ArrayList<>(ofService);
+    }
+    List<List<Span>> result = new ArrayList<>();
+    for (int i = traceIds.size() - 1; i >= 0 && result.size() < limit; i--) {
+      result.add(new ArrayList<>(traces.get(traceIds.get(i))));
+    }
+    return result;
+  }
+
+  synchronized List<String> getServiceNames() {
+    return new ArrayList<>(traceIdsByService.keySet());
+  }
+
+  synchronized int spanCount() {
+    return spanCount;
+  }
+
+  synchronized int traceCount() {
+    return traces.size();
+  }
+
+  synchronized long tracesDropped() {
+    return tracesDropped;
+  }
+}
@@ -0,0 +1,236 @@
+package brave.webmvc;
+
+import brave.webmvc.VirtualThreadsConfiguration.CorrelationCheckInterceptor;
+import brave.webmvc.VirtualThreadsConfiguration.CorrelationLeakFilter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Compares how the traced {@link Frontend} scales with concurrent requests when run on Tomcat's
+ * platform thread pool versus on virtual threads.
+ *
+ * <p>The frontend blocks on its call to the backend for the whole backend latency. To make that
+ * dominate, a stub backend on an ephemeral port responds after {@code -Dbackend.delayMillis}
+ * (default 50) without holding a thread. Each level of {@code -Dconcurrency} keeps that many
+ * requests in flight for {@code -Dseconds}, after a warmup of the same length, then prints
+ * throughput and mean latency. With 200 platform threads, throughput stops growing at about
+ * 200 / delay; with virtual threads it keeps growing with concurrency.
+ *
+ * <p>Virtual threads are skipped unless this runs on JDK 21 or later. When they run, requests
+ * carry one of 100 user names, and the frontend's {@link VirtualThreadsConfiguration} counts
+ * requests whose trace ID or user name leaked into the MDC of another, or that saw the wrong ones.
+ * Flight Recorder records any virtual thread pinned to its carrier. This fails after printing the
+ * results if there were any of either.
+ */
+public final class ConcurrencyLoadTest {
+  public static void main(String[] args) throws Exception {
+    long delayMillis = Long.getLong("backend.delayMillis", 50L);
+    long seconds = Long.getLong("seconds", 10L);
+    String[] levels = System.getProperty("concurrency", "100,200,400,800,1600").split(",");
+
+    HttpServer backend = startStubBackend(delayMillis);
+    CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+        .setMaxConnTotal(Integer.MAX_VALUE)
+        .setMaxConnPerRoute(Integer.MAX_VALUE)
+        .build();
+    client.start();
+    String failure = null;
+    try {
+      System.out.println("threads    concurrency  requests/s  mean ms  errors");
+      for (boolean virtual : new boolean[] {false, true}) {
+        if (virtual && !virtualThreadsSupported()) {
+          System.out.println("virtual threads require JDK 21 or later: skipping");
+          continue;
+        }
+        ConfigurableApplicationContext frontend =
+            startFrontend(backend.getAddress().getPort(), virtual);
+        PinnedThreadRecorder recorder = virtual ? PinnedThreadRecorder.start() : null;
+        try {
+          int port = LatencyLoadTest.port(frontend);
+          for (String level : levels) {
+            int concurrency = Integer.parseInt(level.trim());
+            ClosedLoop loop = new ClosedLoop(client, "http://localhost:" + port + "/", concurrency);
+            loop.run(seconds); // warmup
+            Result result = new ClosedLoop(client, loop.uri, concurrency).run(seconds);
+            System.out.printf("%-10s %11d %11.0f %8.1f %7d%n", virtual ? "virtual" : "platform",
+                concurrency, result.throughput(), result.meanMillis(), result.errors);
+          }
+          if (virtual) failure = checkVirtualThreads(frontend, recorder.stop());
+        } finally {
+          frontend.close();
+        }
+      }
+    } finally {
+      client.close();
+      backend.stop(0);
+    }
+    if (failure != null) throw new IllegalStateException(failure);
+  }
+
+  /** Prints MDC and pinning problems seen on virtual threads, returning a failure if any */
+  static String checkVirtualThreads(ConfigurableApplicationContext frontend, List<?> pinned) {
+    long leaks = frontend.getBean(CorrelationLeakFilter.class).leaks();
+    long mismatches = frontend.getBean(CorrelationCheckInterceptor.class).mismatches();
+    System.out.printf("virtual threads: %d MDC leaks, %d MDC mismatches, %d pinned events%n",
+        leaks, mismatches, pinned.size());
+    // Each event prints with its stack trace, which shows the monitor or native frame that pinned
+    for (Object event : pinned.subList(0, Math.min(5, pinned.size()))) System.out.println(event);
+    if (leaks == 0 && mismatches == 0 && pinned.isEmpty()) return null;
+    return "virtual threads had " + leaks + " MDC leaks, " + mismatches + " MDC mismatches and "
+        + pinned.size() + " pinned events";
+  }
+
+  static ConfigurableApplicationContext startFrontend(int backendPort, boolean virtual) {
+    return SpringApplication.run(Frontend.class,
+        "--spring.application.name=frontend",
+        "--server.port=0",
+        "--backend.url=http://localhost:" + backendPort + "/api",
+        "--spring.threads.virtual.enabled=" + virtual,
+        // Don't let the client connection pool be what limits concurrency
+        "--httpclient.maxTotal=100000",
+        "--httpclient.maxPerRoute=100000",
+        "--logging.level.root=WARN"
+    );
+  }
+
+  static boolean virtualThreadsSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /** Responds to "/api" after a delay, completing exchanges from a timer instead of blocking */
+  static HttpServer startStubBackend(final long delayMillis) throws IOException {
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    HttpServer server = HttpServer.create(new InetSocketAddress(0), 4096);
+    server.createContext("/api", new HttpHandler() {
+      @Override public void handle(final HttpExchange exchange) {
+        timer.schedule(new Runnable() {
+          @Override public void run() {
+            try {
+              byte[] body = new Date().toString().getBytes("ISO-8859-1");
+              exchange.sendResponseHeaders(200, body.length);
+              try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+              }
+            } catch (IOException e) {
+              exchange.close();
+            }
+          }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+      }
+    });
+    server.setExecutor(Executors.newFixedThreadPool(4));
+    server.start();
+    return server;
+  }
+
+  static final class Result {
+    final long requests, errors, latencyNanos, durationNanos;
+
+    Result(long requests, long errors, long latencyNanos, long durationNanos) {
+      this.requests = requests;
+      this.errors = errors;
+      this.latencyNanos = latencyNanos;
+      this.durationNanos = durationNanos;
+    }
+
+    double throughput() {
+      return requests * 1e9 / durationNanos;
+    }
+
+    double meanMillis() {
+      return requests == 0 ? 0 : latencyNanos / 1e6 / requests;
+    }
+  }
+
+  /** Keeps a fixed number of requests in flight, sending the next as each completes */
+  static final class ClosedLoop {
+    final CloseableHttpAsyncClient client;
+    final String uri;
+    final int concurrency;
+    final AtomicLong requests = new AtomicLong(), errors = new AtomicLong();
+    final AtomicLong latencyNanos = new AtomicLong();
+    final CountDownLatch stopped;
+    volatile boolean running = true;
+
+    ClosedLoop(CloseableHttpAsyncClient client, String uri, int concurrency) {
+      this.client = client;
+      this.uri = uri;
+      this.concurrency = concurrency;
+      this.stopped = new CountDownLatch(concurrency);
+    }
+
+    Result run(long seconds) throws InterruptedException {
+      long start = System.nanoTime();
+      for (int i = 0; i < concurrency; i++) send();
+      TimeUnit.SECONDS.sleep(seconds);
+      running = false;
+      long duration = System.nanoTime() - start;
+      stopped.await(30, TimeUnit.SECONDS);
+      return new Result(requests.get(), errors.get(), latencyNanos.get(), duration);
+    }
+
+    void send() {
+      final long start = System.nanoTime();
+      HttpGet request = new HttpGet(uri);
+      // Varies the baggage, so that a user name left in the MDC would show up in another request
+      request.setHeader("user_name", "user" + (start & 0x7fffffff) % 100);
+      client.execute(request, new FutureCallback<HttpResponse>() {
+        @Override public void completed(HttpResponse response) {
+          try {
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != 200) errors.incrementAndGet();
+          } catch (IOException e) {
+            errors.incrementAndGet();
+          }
+          next();
+        }
+
+        @Override public void failed(Exception e) {
+          errors.incrementAndGet();
+          next();
+        }
+
+        @Override public void cancelled() {
+          next();
+        }
+
+        void next() {
+          if (!running) {
+            stopped.countDown();
+            return;
+          }
+          requests.incrementAndGet();
+          latencyNanos.addAndGet(System.nanoTime() - start);
+          send();
+        }
+      });
+    }
+  }
+
+  private ConcurrencyLoadTest() {
+  }
+}
@@ -0,0 +1,204 @@
+package brave.webmvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Measures end-to-end latency percentiles of {@link Frontend} calling {@link Backend}, with and
+ * without {@link TracingConfiguration}, so that tracing regressions show up as a shift in p99.
+ *
+ * <p>Both applications start on ephemeral ports, reporting to an embedded {@link
+ * InMemoryCollector}, so spans are decoded and stored as Zipkin would. Requests are sent open-loop
+ * at {@code -Drate} per second for {@code -Dseconds}, after {@code -Dwarmup} seconds: a slow
+ * response doesn't delay the requests behind it. Latency is measured from when each request was
+ * due to be sent, not when it was, so a stall is charged to every request it held up. This is the
+ * correction for coordinated omission; the uncorrected histogram is printed alongside for
+ * comparison.
+ *
+ * <p>{@code -Dtracing} chooses the runs: "both" (default), "true" or "false". Each run writes its
+ * corrected histogram as {@code target/latency-tracing-<enabled>.hgrm}, which HdrHistogram's
+ * plotter can overlay.
+ */
+public final class LatencyLoadTest {
+  static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+  public static void main(String[] args) throws Exception {
+    int rate = Integer.getInteger("rate", 1000);
+    long warmupSeconds = Long.getLong("warmup", 10L);
+    long seconds = Long.getLong("seconds", 30L);
+    String tracing = System.getProperty("tracing", "both");
+    // Without tracing, the rest template uses Boot's default HttpClient, which sizes its
+    // connection pool from this property. Match the traced client, so only tracing differs.
+    System.setProperty("http.maxConnections", "1000");
+
+    InMemoryCollector collector =
+        InMemoryCollector.start(0, Integer.getInteger("collector.maxSpans", 500000), 2);
+    CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+        .setMaxConnTotal(Integer.MAX_VALUE)
+        .setMaxConnPerRoute(Integer.MAX_VALUE)
+        .build();
+    client.start();
+    try {
+      System.out.println("tracing  histogram   requests  errors"
+          + "  p50 ms  p90 ms  p99 ms p99.9ms p99.99ms max ms");
+      for (boolean tracingEnabled : new boolean[] {true, false}) {
+        if (!tracing.equals("both") && Boolean.parseBoolean(tracing) != tracingEnabled) continue;
+
+        List<ConfigurableApplicationContext> apps = startApps(collector, tracingEnabled);
+        try {
+          String uri = "http://localhost:" + port(apps.get(1)) + "/";
+          new OpenLoop(client, uri, rate).run(warmupSeconds);
+          OpenLoop loop = new OpenLoop(client, uri, rate);
+          loop.run(seconds);
+          print(tracingEnabled, "corrected", loop.corrected, loop.errors.get());
+          print(tracingEnabled, "sent", loop.uncorrected, loop.errors.get());
+          write(tracingEnabled, loop.corrected);
+        } finally {
+          for (int i = apps.size() - 1; i >= 0; i--) apps.get(i).close();
+        }
+      }
+      System.out.printf("collector received %d messages, %d spans, %d bytes, %d malformed%n",
+          collector.messages.get(), collector.spans.get(), collector.bytes.get(),
+          collector.malformedMessages.get());
+    } finally {
+      client.close();
+      collector.close();
+    }
+  }
+
+  /** Returns the backend then frontend, where the frontend calls the backend */
+  static List<ConfigurableApplicationContext> startApps(InMemoryCollector collector,
+      boolean tracingEnabled) {
+    List<ConfigurableApplicationContext> result = new ArrayList<>();
+    ConfigurableApplicationContext backend = SpringApplication.run(Backend.class,
+        args(collector, tracingEnabled, "--spring.application.name=backend"));
+    result.add(backend);
+    result.add(SpringApplication.run(Frontend.class,
+        args(collector, tracingEnabled, "--spring.application.name=frontend",
+            "--backend.url=http://localhost:" + port(backend) + "/api",
+            // Every request should reach the backend, not the frontend's http cache
+            "--frontend.httpCache.maximumSize=0")));
+    return result;
+  }
+
+  static String[] args(InMemoryCollector collector, boolean tracingEnabled, String... more) {
+    List<String> result = new ArrayList<>();
+    result.add("--server.port=0");
+    result.add("--logging.level.root=WARN");
+    result.add("--zipkin.endpoint=http://localhost:" + collector.port() + "/api/v2/spans");
+    result.add("--httpclient.maxTotal=1000");
+    result.add("--httpclient.maxPerRoute=1000");
+    if (!tracingEnabled) {
+      result.add("--spring.autoconfigure.exclude=" + TracingConfiguration.class.getName());
+    }
+    for (String arg : more) result.add(arg);
+    return result.toArray(new String[0]);
+  }
+
+  static int port(ConfigurableApplicationContext context) {
+    return ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+  }
+
+  static void print(boolean tracingEnabled, String name, Histogram histogram, long errors) {
+    StringBuilder percentiles = new StringBuilder();
+    for (double percentile : PERCENTILES) {
+      percentiles.append(String.format("%8.2f", histogram.getValueAtPercentile(percentile) / 1e6));
+    }
+    System.out.printf("%-8s %-9s %10d %7d %s %6.2f%n", tracingEnabled, name,
+        histogram.getTotalCount(), errors, percentiles, histogram.getMaxValue() / 1e6);
+  }
+
+  static void write(boolean tracingEnabled, Histogram histogram) throws IOException {
+    File file = new File("target", "latency-tracing-" + tracingEnabled + ".hgrm");
+    file.getParentFile().mkdirs();
+    try (PrintStream out = new PrintStream(file, "UTF-8")) {
+      histogram.outputPercentileDistribution(out, 1e6); // in milliseconds
+    }
+  }
+
+  /** Sends requests on a fixed schedule, whether or not earlier ones have completed */
+  static final class OpenLoop {
+    final CloseableHttpAsyncClient client;
+    final String uri;
+    final long intervalNanos;
+    final Recorder correctedRecorder = new Recorder(3), uncorrectedRecorder = new Recorder(3);
+    final AtomicLong inFlight = new AtomicLong(), errors = new AtomicLong();
+    Histogram corrected, uncorrected;
+
+    OpenLoop(CloseableHttpAsyncClient client, String uri, int rate) {
+      if (rate < 1) throw new IllegalArgumentException("rate < 1");
+      this.client = client;
+      this.uri = uri;
+      this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    void run(long seconds) throws InterruptedException {
+      long start = System.nanoTime(), end = start + TimeUnit.SECONDS.toNanos(seconds);
+      for (long due = start; due < end; due += intervalNanos) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+        send(due);
+      }
+      // Wait for stragglers, so their latency is counted
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      corrected = correctedRecorder.getIntervalHistogram();
+      uncorrected = uncorrectedRecorder.getIntervalHistogram();
+    }
+
+    void send(final long due) {
+      final long sent = System.nanoTime();
+      inFlight.incrementAndGet();
+      client.execute(new HttpGet(uri), new FutureCallback<HttpResponse>() {
+        @Override public void completed(HttpResponse response) {
+          try {
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != 200) errors.incrementAndGet();
+          } catch (IOException e) {
+            errors.incrementAndGet();
+          }
+          done();
+        }
+
+        @Override public void failed(Exception e) {
+          errors.incrementAndGet();
+          done();
+        }
+
+        @Override public void cancelled() {
+          errors.incrementAndGet();
+          done();
+        }
+
+        void done() {
+          long now = System.nanoTime();
+          correctedRecorder.recordValue(now - due);
+          uncorrectedRecorder.recordValue(now - sent);
+          inFlight.decrementAndGet();
+        }
+      });
+    }
+  }
+
+  private LatencyLoadTest() {
+  }
+}
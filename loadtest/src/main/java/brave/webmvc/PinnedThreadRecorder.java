@@ -0,0 +1,58 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Records {@code jdk.VirtualThreadPinned} events with Flight Recorder, which the JDK emits when a
+ * virtual thread blocks for 20ms or more without unmounting from its carrier. Flight Recorder is
+ * used reflectively, as the load tests compile for Java 7.
+ */
+final class PinnedThreadRecorder {
+  /** @throws IllegalStateException if the JDK has no Flight Recorder */
+  static PinnedThreadRecorder start() {
+    try {
+      Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+      Object recording = recordingClass.getConstructor().newInstance();
+      Object settings = recordingClass.getMethod("enable", String.class)
+          .invoke(recording, "jdk.VirtualThreadPinned");
+      // The returned settings are a JDK subclass, so the public method is looked up on its type
+      Class.forName("jdk.jfr.EventSettings").getMethod("withStackTrace").invoke(settings);
+      recordingClass.getMethod("start").invoke(recording);
+      return new PinnedThreadRecorder(recordingClass, recording);
+    } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException
+        | IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("couldn't start a flight recording", e);
+    }
+  }
+
+  final Class<?> recordingClass;
+  final Object recording;
+
+  PinnedThreadRecorder(Class<?> recordingClass, Object recording) {
+    this.recordingClass = recordingClass;
+    this.recording = recording;
+  }
+
+  /** Stops recording and returns the pinned events, which print with their stack traces */
+  List<?> stop() throws IOException {
+    Path file = Files.createTempFile("pinned", ".jfr");
+    try {
+      recordingClass.getMethod("stop").invoke(recording);
+      recordingClass.getMethod("dump", Path.class).invoke(recording, file);
+      recordingClass.getMethod("close").invoke(recording);
+      return (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+          .getMethod("readAllEvents", Path.class).invoke(null, file);
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+      throw new IllegalStateException("couldn't read the flight recording", e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IllegalStateException("couldn't read the flight recording", e.getCause());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package brave.webmvc;
 
 import java.io.IOException;
-import java.util.Date;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.stereotype.Controller;
@@ -9,16 +8,10 @@ import org.springframework.web.bind.annotation.RequestMapping;
 
 @Controller
 public class Backend {
+  final CachedDate date = new CachedDate();
 
   @RequestMapping("/api")
   public void printDate(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    String result;
-    String username = req.getHeader("user_name");
-    if (username != null) {
-      result = new Date().toString() + " " + username;
-    } else {
-      result = new Date().toString();
-    }
-    resp.getWriter().write(result);
+    date.writeTo(req.getHeader("user_name"), req.getHeader("If-None-Match"), resp);
   }
 }
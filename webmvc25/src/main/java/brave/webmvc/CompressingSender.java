@@ -0,0 +1,311 @@
+package brave.webmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Sender;
+
+/**
+ * Posts span messages to Zipkin's http endpoint, compressed with a pluggable {@link Codec}.
+ *
+ * <p>{@code URLConnectionSender} also gzips, but its {@link #messageMaxBytes()} is the
+ * uncompressed size, so batches close long before the collector's limit is reached. Here, the
+ * limit applies to the compressed body: batchers are told they can fill {@link
+ * Builder#compressionRatio(float)} times more, and a message that still compresses past the limit
+ * is split in half and sent as two.
+ *
+ * <p>This is the webmvc4 example's sender, written for Java 6 and {@code HttpURLConnection}, like
+ * {@code URLConnectionSender}. Configure it in XML with {@link CompressingSenderFactoryBean}.
+ */
+public final class CompressingSender extends Sender {
+  /** Compresses a whole message, which is then sent with the corresponding content encoding. */
+  public interface Codec {
+    /** The {@code Content-Encoding} header value, such as "gzip" */
+    String contentEncoding();
+
+    byte[] compress(byte[] message) throws IOException;
+  }
+
+  /** Gzip at the default level. This is the only encoding the Zipkin server decompresses. */
+  public static final Codec GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+
+  /** Gzip at a level between 1 (fastest) and 9 (smallest). */
+  public static Codec gzip(final int level) {
+    return new Codec() {
+      @Override public String contentEncoding() {
+        return "gzip";
+      }
+
+      @Override public byte[] compress(byte[] message) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(message.length / 4 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(result) {
+          {
+            def.setLevel(level);
+          }
+        };
+        try {
+          gzip.write(message);
+        } finally {
+          gzip.close();
+        }
+        return result.toByteArray();
+      }
+
+      @Override public String toString() {
+        return "gzip(" + level + ")";
+      }
+    };
+  }
+
+  /** Returns the codec for the {@code zipkin.compression} property, or null for "none". */
+  public static Codec codec(String name) {
+    if ("gzip".equals(name)) return GZIP;
+    if ("none".equals(name)) return null;
+    throw new IllegalArgumentException("unsupported compression " + name);
+  }
+
+  public static Builder newBuilder(String endpoint) {
+    return new Builder(endpoint);
+  }
+
+  public static final class Builder {
+    final String endpoint;
+    Encoding encoding = Encoding.JSON;
+    Codec codec = GZIP;
+    int messageMaxBytes = 5 * 1024 * 1024;
+    float compressionRatio = 4f;
+    int connectTimeout = 10 * 1000, readTimeout = 60 * 1000;
+
+    Builder(String endpoint) {
+      if (endpoint == null) throw new NullPointerException("endpoint == null");
+      this.endpoint = endpoint;
+    }
+
+    public Builder encoding(Encoding encoding) {
+      if (encoding == null) throw new NullPointerException("encoding == null");
+      this.encoding = encoding;
+      return this;
+    }
+
+    /** How to compress messages, or null to send them as-is. Default {@link #GZIP}. */
+    public Builder codec(Codec codec) {
+      this.codec = codec;
+      return this;
+    }
+
+    /** Largest message body the collector accepts, after compression. Default 5MiB. */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      if (messageMaxBytes < 1024) throw new IllegalArgumentException("messageMaxBytes < 1024");
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /**
+     * The least a message is expected to shrink by. Too high, and messages are often split; too
+     * low, and they are smaller than they could be. Default 4, where span lists usually compress
+     * 5-10x.
+     */
+    public Builder compressionRatio(float compressionRatio) {
+      if (compressionRatio < 1f) throw new IllegalArgumentException("compressionRatio < 1");
+      this.compressionRatio = compressionRatio;
+      return this;
+    }
+
+    /** Milliseconds to wait to connect, as {@code URLConnectionSender}. Default 10 seconds. */
+    public Builder connectTimeout(int connectTimeout) {
+      if (connectTimeout < 0) throw new IllegalArgumentException("connectTimeout < 0");
+      this.connectTimeout = connectTimeout;
+      return this;
+    }
+
+    /** Milliseconds to wait for a response, as {@code URLConnectionSender}. Default 60 seconds. */
+    public Builder readTimeout(int readTimeout) {
+      if (readTimeout < 0) throw new IllegalArgumentException("readTimeout < 0");
+      this.readTimeout = readTimeout;
+      return this;
+    }
+
+    public CompressingSender build() {
+      return new CompressingSender(this);
+    }
+  }
+
+  final URL endpoint;
+  final Encoding encoding;
+  final BytesMessageEncoder messageEncoder;
+  final String mediaType;
+  final Codec codec;
+  final int compressedMaxBytes, messageMaxBytes;
+  final int connectTimeout, readTimeout;
+  final AtomicLong messageBytes = new AtomicLong(), compressedBytes = new AtomicLong();
+  final AtomicLong splits = new AtomicLong();
+  volatile boolean closed;
+
+  CompressingSender(Builder builder) {
+    try {
+      endpoint = new URL(builder.endpoint);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("invalid endpoint " + builder.endpoint, e);
+    }
+    encoding = builder.encoding;
+    messageEncoder = BytesMessageEncoder.forEncoding(encoding);
+    mediaType = mediaType(encoding);
+    codec = builder.codec;
+    compressedMaxBytes = builder.messageMaxBytes;
+    messageMaxBytes = codec == null ? compressedMaxBytes
+        : (int) Math.min(Integer.MAX_VALUE, (long) (compressedMaxBytes * builder.compressionRatio));
+    connectTimeout = builder.connectTimeout;
+    readTimeout = builder.readTimeout;
+  }
+
+  @Override public Encoding encoding() {
+    return encoding;
+  }
+
+  /** The uncompressed size batchers should aim for. */
+  @Override public int messageMaxBytes() {
+    return messageMaxBytes;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return encoding.listSizeInBytes(encodedSpans);
+  }
+
+  /** Called per span while reporting, so this avoids the default's placeholder list and array */
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    return encoding.listSizeInBytes(encodedSizeInBytes);
+  }
+
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    if (closed) throw new IllegalStateException("closed");
+    return new SendCall(encodedSpans);
+  }
+
+  /** Sends an empty message, which the collector accepts without storing anything. */
+  @Override public CheckResult check() {
+    try {
+      send(Collections.<byte[]>emptyList());
+      return CheckResult.OK;
+    } catch (Exception e) {
+      return CheckResult.failed(e);
+    }
+  }
+
+  @Override public void close() {
+    closed = true;
+  }
+
+  /** Uncompressed divided by compressed message bytes */
+  public double getCompressionRatio() {
+    long compressed = compressedBytes.get();
+    return compressed == 0 ? 1.0 : (double) messageBytes.get() / compressed;
+  }
+
+  /** Messages split as they compressed to more than the limit */
+  public long getSplitCount() {
+    return splits.get();
+  }
+
+  void send(List<byte[]> encodedSpans) throws IOException {
+    byte[] message = messageEncoder.encode(encodedSpans);
+    byte[] body = codec != null ? codec.compress(message) : message;
+    if (body.length > compressedMaxBytes && encodedSpans.size() > 1) {
+      splits.incrementAndGet();
+      int half = encodedSpans.size() / 2;
+      send(encodedSpans.subList(0, half));
+      send(encodedSpans.subList(half, encodedSpans.size()));
+      return;
+    }
+    messageBytes.addAndGet(message.length);
+    compressedBytes.addAndGet(body.length);
+
+    HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", mediaType);
+    if (codec != null) {
+      connection.setRequestProperty("Content-Encoding", codec.contentEncoding());
+    }
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(body.length);
+    OutputStream out = connection.getOutputStream();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+    int status = connection.getResponseCode();
+    // Drains the response, so that the connection can be kept alive and reused
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null) {
+      try {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+        }
+      } finally {
+        in.close();
+      }
+    }
+    if (status / 100 != 2) throw new IOException("response failed: " + status);
+  }
+
+  static String mediaType(Encoding encoding) {
+    switch (encoding) {
+      case JSON:
+        return "application/json";
+      case THRIFT:
+        return "application/x-thrift";
+      case PROTO3:
+        return "application/x-protobuf";
+      default:
+        throw new UnsupportedOperationException("unsupported encoding " + encoding);
+    }
+  }
+
+  @Override public String toString() {
+    return "CompressingSender{" + endpoint + ", codec=" + codec + "}";
+  }
+
+  final class SendCall extends Call.Base<Void> {
+    final List<byte[]> encodedSpans;
+
+    SendCall(List<byte[]> encodedSpans) {
+      this.encodedSpans = encodedSpans;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      send(encodedSpans);
+      return null;
+    }
+
+    /** Messages are sent from the reporter's own thread, so this doesn't need to be async. */
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      try {
+        send(encodedSpans);
+        callback.onSuccess(null);
+      } catch (IOException e) {
+        callback.onError(e);
+      } catch (RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override public Call<Void> clone() {
+      return new SendCall(encodedSpans);
+    }
+  }
+}
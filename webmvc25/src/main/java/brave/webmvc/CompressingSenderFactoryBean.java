@@ -0,0 +1,59 @@
+package brave.webmvc;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+/**
+ * Creates a {@link CompressingSender} from properties, as it is only configurable with a builder.
+ * Unlike {@code URLConnectionSenderFactoryBean}, {@code messageMaxBytes} is the limit after
+ * compression.
+ */
+public class CompressingSenderFactoryBean implements FactoryBean, DisposableBean {
+  String endpoint = "http://localhost:9411/api/v2/spans";
+  Encoding encoding = Encoding.JSON;
+  String compression = "gzip";
+  int messageMaxBytes = 5 * 1024 * 1024;
+  CompressingSender sender;
+
+  public synchronized Object getObject() {
+    if (sender == null) {
+      sender = CompressingSender.newBuilder(endpoint)
+          .encoding(encoding)
+          .codec(CompressingSender.codec(compression))
+          .messageMaxBytes(messageMaxBytes)
+          .build();
+    }
+    return sender;
+  }
+
+  public Class getObjectType() {
+    return Sender.class;
+  }
+
+  public boolean isSingleton() {
+    return true;
+  }
+
+  public synchronized void destroy() {
+    if (sender != null) sender.close();
+  }
+
+  public void setEndpoint(String endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  public void setEncoding(Encoding encoding) {
+    this.encoding = encoding;
+  }
+
+  /** "gzip" (default) or "none" */
+  public void setCompression(String compression) {
+    this.compression = compression;
+  }
+
+  public void setMessageMaxBytes(int messageMaxBytes) {
+    this.messageMaxBytes = messageMaxBytes;
+  }
+}
@@ -0,0 +1,101 @@
+package brave.webmvc;
+
+import brave.baggage.BaggageField;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Gets response bodies, caching them for their {@code Cache-Control: max-age}, and afterwards
+ * revalidating them with {@code If-None-Match}, so an unchanged body isn't transferred again.
+ *
+ * <p>The backend varies responses on the "user_name" header, but that header is added from
+ * baggage inside the traced http client. So, entries are keyed on the baggage field's value
+ * instead. At most {@code maximumSize} entries are kept, least recently used first out.
+ */
+public final class ConditionalGetClient {
+  final HttpClient client;
+  final BaggageField varyField;
+  final LinkedHashMap<String, Entry> entries; // guarded by itself
+
+  public ConditionalGetClient(HttpClient client, BaggageField varyField, final int maximumSize) {
+    if (client == null) throw new NullPointerException("client == null");
+    if (varyField == null) throw new NullPointerException("varyField == null");
+    this.client = client;
+    this.varyField = varyField;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maximumSize;
+      }
+    };
+  }
+
+  public String get(String uri) throws IOException {
+    String key = uri + "#" + varyField.getValue();
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry != null && System.currentTimeMillis() < entry.expiresMillis) return entry.body;
+
+    HttpGet request = new HttpGet(uri);
+    if (entry != null) request.setHeader("If-None-Match", entry.etag);
+    HttpResponse response = client.execute(request);
+    int status = response.getStatusLine().getStatusCode();
+    if (entry != null && status == HttpStatus.SC_NOT_MODIFIED) {
+      EntityUtils.consume(response.getEntity());
+      entry = new Entry(entry.body, entry.etag, expiresMillis(response));
+    } else {
+      String body = EntityUtils.toString(response.getEntity());
+      Header etag = response.getFirstHeader("ETag");
+      if (status != HttpStatus.SC_OK || etag == null) return body; // can't revalidate
+      entry = new Entry(body, etag.getValue(), expiresMillis(response));
+    }
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+    return entry.body;
+  }
+
+  /** Freshness is relative to the {@code Date} header, so it follows the server's clock. */
+  static long expiresMillis(HttpResponse response) {
+    long maxAgeSeconds = 0;
+    Header cacheControl = response.getFirstHeader("Cache-Control");
+    if (cacheControl != null) {
+      for (String directive : cacheControl.getValue().split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-cache") || directive.equals("no-store")) return 0;
+        if (directive.startsWith("max-age=")) {
+          try {
+            maxAgeSeconds = Long.parseLong(directive.substring(8));
+          } catch (NumberFormatException e) {
+            return 0;
+          }
+        }
+      }
+    }
+    Header dateHeader = response.getFirstHeader("Date");
+    Date date = dateHeader != null ? DateUtils.parseDate(dateHeader.getValue()) : null;
+    long dateMillis = date != null ? date.getTime() : System.currentTimeMillis();
+    return dateMillis + maxAgeSeconds * 1000L;
+  }
+
+  static final class Entry {
+    final String body, etag;
+    final long expiresMillis;
+
+    Entry(String body, String etag, long expiresMillis) {
+      this.body = body;
+      this.etag = etag;
+      this.expiresMillis = expiresMillis;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package brave.webmvc;
+
+import brave.http.HttpRequestMatchers;
+import brave.http.HttpRuleSampler;
+import brave.sampler.RateLimitingSampler;
+import java.util.Collections;
+import java.util.Map;
+import org.springframework.beans.factory.FactoryBean;
+
+/**
+ * Creates a server sampler from path prefixes mapped to traces per second, as {@link
+ * HttpRuleSampler} is only configurable with a builder. Rules are evaluated in order, and requests
+ * that match none fall back to the trace sampler. A rate of zero means never sample.
+ */
+public class HttpRuleSamplerFactoryBean implements FactoryBean {
+  Map<String, Integer> rules = Collections.emptyMap();
+
+  public Object getObject() {
+    HttpRuleSampler.Builder builder = HttpRuleSampler.newBuilder();
+    for (Map.Entry<String, Integer> rule : rules.entrySet()) {
+      builder.putRule(HttpRequestMatchers.pathStartsWith(rule.getKey()),
+          RateLimitingSampler.create(rule.getValue()));
+    }
+    return builder.build();
+  }
+
+  public Class getObjectType() {
+    return HttpRuleSampler.class;
+  }
+
+  public boolean isSingleton() {
+    return true;
+  }
+
+  public void setRules(Map<String, Integer> rules) {
+    this.rules = rules;
+  }
+}
@@ -0,0 +1,22 @@
+package brave.webmvc;
+
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+/**
+ * Reads the XML contexts without schema validation, so that startup doesn't load and compile the
+ * Spring XSDs. Namespaces such as {@code <util:constant/>} still work, as their handlers
+ * are found by namespace URI, not by schema.
+ *
+ * <p>XSD default attributes aren't applied either, so elements that rely on one must set it, or
+ * be declared as plain beans. For example, {@code <context:property-placeholder/>} is a bean here.
+ *
+ * <p>Set the system property {@code spring.xml.validating=true} to validate again, for example to
+ * compare the "initialization completed" times Spring logs on a cold JVM.
+ */
+public class NonValidatingXmlWebApplicationContext extends XmlWebApplicationContext {
+  @Override protected void initBeanDefinitionReader(XmlBeanDefinitionReader reader) {
+    // setValidating(false) also makes the parser namespace aware, unlike setValidationMode
+    reader.setValidating(Boolean.getBoolean("spring.xml.validating"));
+  }
+}
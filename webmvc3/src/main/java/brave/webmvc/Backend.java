@@ -1,25 +1,21 @@
 package brave.webmvc;
 
-import java.util.Date;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 @Controller
 public class Backend {
+  final CachedDate date = new CachedDate();
 
   @RequestMapping("/api")
-  public ResponseEntity<String> printDate(
-      @RequestHeader(value = "user_name", required = false) String username
-  ) {
-    String result;
-    if (username != null) {
-      result = new Date().toString() + " " + username;
-    } else {
-      result = new Date().toString();
-    }
-    return new ResponseEntity<String>(result, HttpStatus.OK);
+  public void printDate(
+      @RequestHeader(value = "user_name", required = false) String username,
+      @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+      HttpServletResponse response
+  ) throws IOException {
+    date.writeTo(username, ifNoneMatch, response);
   }
 }
@@ -0,0 +1,282 @@
+package brave.webmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Sender;
+
+/**
+ * Posts span messages to Zipkin's http endpoint, compressed with a pluggable {@link Codec}.
+ *
+ * <p>{@code OkHttpSender} also gzips, but its {@link #messageMaxBytes()} is the uncompressed size,
+ * so batches close long before the collector's limit is reached. Here, the limit applies to the
+ * compressed body: batchers are told they can fill {@link Builder#compressionRatio(float)} times
+ * more, and a message that still compresses past the limit is split in half and sent as two.
+ *
+ * <p>This is the webmvc4 example's sender, written for Java 6. See {@link
+ * TracingConfiguration#sender()}.
+ */
+public final class CompressingSender extends Sender {
+  /** Compresses a whole message, which is then sent with the corresponding content encoding. */
+  public interface Codec {
+    /** The {@code Content-Encoding} header value, such as "gzip" */
+    String contentEncoding();
+
+    byte[] compress(byte[] message) throws IOException;
+  }
+
+  /** Gzip at the default level. This is the only encoding the Zipkin server decompresses. */
+  public static final Codec GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+
+  /** Gzip at a level between 1 (fastest) and 9 (smallest). */
+  public static Codec gzip(final int level) {
+    return new Codec() {
+      @Override public String contentEncoding() {
+        return "gzip";
+      }
+
+      @Override public byte[] compress(byte[] message) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(message.length / 4 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(result) {
+          {
+            def.setLevel(level);
+          }
+        };
+        try {
+          gzip.write(message);
+        } finally {
+          gzip.close();
+        }
+        return result.toByteArray();
+      }
+
+      @Override public String toString() {
+        return "gzip(" + level + ")";
+      }
+    };
+  }
+
+  /** Returns the codec for the {@code zipkin.compression} property, or null for "none". */
+  public static Codec codec(String name) {
+    if ("gzip".equals(name)) return GZIP;
+    if ("none".equals(name)) return null;
+    throw new IllegalArgumentException("unsupported compression " + name);
+  }
+
+  public static Builder newBuilder(String endpoint) {
+    return new Builder(endpoint);
+  }
+
+  public static final class Builder {
+    final String endpoint;
+    Encoding encoding = Encoding.JSON;
+    Codec codec = GZIP;
+    int messageMaxBytes = 5 * 1024 * 1024;
+    float compressionRatio = 4f;
+    OkHttpClient client;
+
+    Builder(String endpoint) {
+      if (endpoint == null) throw new NullPointerException("endpoint == null");
+      this.endpoint = endpoint;
+    }
+
+    public Builder encoding(Encoding encoding) {
+      if (encoding == null) throw new NullPointerException("encoding == null");
+      this.encoding = encoding;
+      return this;
+    }
+
+    /** How to compress messages, or null to send them as-is. Default {@link #GZIP}. */
+    public Builder codec(Codec codec) {
+      this.codec = codec;
+      return this;
+    }
+
+    /** Largest message body the collector accepts, after compression. Default 5MiB. */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      if (messageMaxBytes < 1024) throw new IllegalArgumentException("messageMaxBytes < 1024");
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /**
+     * The least a message is expected to shrink by. Too high, and messages are often split; too
+     * low, and they are smaller than they could be. Default 4, where span lists usually compress
+     * 5-10x.
+     */
+    public Builder compressionRatio(float compressionRatio) {
+      if (compressionRatio < 1f) throw new IllegalArgumentException("compressionRatio < 1");
+      this.compressionRatio = compressionRatio;
+      return this;
+    }
+
+    /** Defaults to a new client with OkHttp's defaults. */
+    public Builder client(OkHttpClient client) {
+      if (client == null) throw new NullPointerException("client == null");
+      this.client = client;
+      return this;
+    }
+
+    public CompressingSender build() {
+      return new CompressingSender(this);
+    }
+  }
+
+  final String endpoint;
+  final Encoding encoding;
+  final BytesMessageEncoder messageEncoder;
+  final MediaType mediaType;
+  final Codec codec;
+  final int compressedMaxBytes, messageMaxBytes;
+  final OkHttpClient client;
+  final AtomicLong messageBytes = new AtomicLong(), compressedBytes = new AtomicLong();
+  final AtomicLong splits = new AtomicLong();
+  volatile boolean closed;
+
+  CompressingSender(Builder builder) {
+    endpoint = builder.endpoint;
+    encoding = builder.encoding;
+    messageEncoder = BytesMessageEncoder.forEncoding(encoding);
+    mediaType = MediaType.parse(mediaType(encoding));
+    codec = builder.codec;
+    compressedMaxBytes = builder.messageMaxBytes;
+    messageMaxBytes = codec == null ? compressedMaxBytes
+        : (int) Math.min(Integer.MAX_VALUE, (long) (compressedMaxBytes * builder.compressionRatio));
+    client = builder.client != null ? builder.client : new OkHttpClient();
+  }
+
+  @Override public Encoding encoding() {
+    return encoding;
+  }
+
+  /** The uncompressed size batchers should aim for. */
+  @Override public int messageMaxBytes() {
+    return messageMaxBytes;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return encoding.listSizeInBytes(encodedSpans);
+  }
+
+  /** Called per span while reporting, so this avoids the default's placeholder list and array */
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    return encoding.listSizeInBytes(encodedSizeInBytes);
+  }
+
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    if (closed) throw new IllegalStateException("closed");
+    return new SendCall(encodedSpans);
+  }
+
+  /** Sends an empty message, which the collector accepts without storing anything. */
+  @Override public CheckResult check() {
+    try {
+      send(Collections.<byte[]>emptyList());
+      return CheckResult.OK;
+    } catch (Exception e) {
+      return CheckResult.failed(e);
+    }
+  }
+
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+  }
+
+  /** Uncompressed divided by compressed message bytes */
+  public double getCompressionRatio() {
+    long compressed = compressedBytes.get();
+    return compressed == 0 ? 1.0 : (double) messageBytes.get() / compressed;
+  }
+
+  /** Messages split as they compressed to more than the limit */
+  public long getSplitCount() {
+    return splits.get();
+  }
+
+  void send(List<byte[]> encodedSpans) throws IOException {
+    byte[] message = messageEncoder.encode(encodedSpans);
+    byte[] body = codec != null ? codec.compress(message) : message;
+    if (body.length > compressedMaxBytes && encodedSpans.size() > 1) {
+      splits.incrementAndGet();
+      int half = encodedSpans.size() / 2;
+      send(encodedSpans.subList(0, half));
+      send(encodedSpans.subList(half, encodedSpans.size()));
+      return;
+    }
+    messageBytes.addAndGet(message.length);
+    compressedBytes.addAndGet(body.length);
+
+    Request.Builder request = new Request.Builder().url(endpoint)
+        .post(RequestBody.create(mediaType, body));
+    if (codec != null) request.header("Content-Encoding", codec.contentEncoding());
+    Response response = client.newCall(request.build()).execute();
+    try {
+      if (!response.isSuccessful()) throw new IOException("response failed: " + response);
+    } finally {
+      response.close();
+    }
+  }
+
+  static String mediaType(Encoding encoding) {
+    switch (encoding) {
+      case JSON:
+        return "application/json";
+      case THRIFT:
+        return "application/x-thrift";
+      case PROTO3:
+        return "application/x-protobuf";
+      default:
+        throw new UnsupportedOperationException("unsupported encoding " + encoding);
+    }
+  }
+
+  @Override public String toString() {
+    return "CompressingSender{" + endpoint + ", codec=" + codec + "}";
+  }
+
+  final class SendCall extends Call.Base<Void> {
+    final List<byte[]> encodedSpans;
+
+    SendCall(List<byte[]> encodedSpans) {
+      this.encodedSpans = encodedSpans;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      send(encodedSpans);
+      return null;
+    }
+
+    /** Messages are sent from the reporter's own thread, so this doesn't need to be async. */
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      try {
+        send(encodedSpans);
+        callback.onSuccess(null);
+      } catch (IOException e) {
+        callback.onError(e);
+      } catch (RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override public Call<Void> clone() {
+      return new SendCall(encodedSpans);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package brave.webmvc;
+
+import brave.baggage.BaggageField;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Caches GET responses for their {@code Cache-Control: max-age}, and afterwards revalidates them
+ * with {@code If-None-Match}, so an unchanged body isn't transferred again.
+ *
+ * <p>The backend varies responses on the "user_name" header, but that header is added from
+ * baggage by the traced http client, after this interceptor runs. So, entries are keyed on the
+ * baggage field's value instead. At most {@code maximumSize} entries are kept, least recently used
+ * first out.
+ */
+public final class ConditionalGetInterceptor implements ClientHttpRequestInterceptor {
+  final BaggageField varyField;
+  final LinkedHashMap<String, Entry> entries; // guarded by itself
+
+  public ConditionalGetInterceptor(BaggageField varyField, final int maximumSize) {
+    if (varyField == null) throw new NullPointerException("varyField == null");
+    this.varyField = varyField;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maximumSize;
+      }
+    };
+  }
+
+  @Override public ClientHttpResponse intercept(HttpRequest request, byte[] body,
+      ClientHttpRequestExecution execution) throws IOException {
+    if (request.getMethod() != HttpMethod.GET) return execution.execute(request, body);
+
+    String key = request.getURI() + "#" + varyField.getValue();
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry != null && System.currentTimeMillis() < entry.expiresMillis) return entry.response();
+    if (entry != null) request.getHeaders().set("If-None-Match", entry.etag);
+
+    ClientHttpResponse response = execution.execute(request, body);
+    HttpStatus status = response.getStatusCode();
+    if (entry != null && status == HttpStatus.NOT_MODIFIED) {
+      entry = new Entry(entry.headers, entry.body, entry.etag, expiresMillis(response));
+      response.close();
+    } else if (status == HttpStatus.OK && response.getHeaders().getETag() != null) {
+      byte[] bytes = StreamUtils.copyToByteArray(response.getBody());
+      entry = new Entry(response.getHeaders(), bytes, response.getHeaders().getETag(),
+          expiresMillis(response));
+      response.close();
+    } else {
+      return response; // not something we can revalidate
+    }
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+    return entry.response();
+  }
+
+  /** Freshness is relative to the {@code Date} header, so it follows the server's clock. */
+  static long expiresMillis(ClientHttpResponse response) {
+    HttpHeaders headers = response.getHeaders();
+    long maxAgeSeconds = 0;
+    String cacheControl = headers.getFirst("Cache-Control");
+    if (cacheControl != null) {
+      for (String directive : cacheControl.split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-cache") || directive.equals("no-store")) return 0;
+        if (directive.startsWith("max-age=")) {
+          try {
+            maxAgeSeconds = Long.parseLong(directive.substring(8));
+          } catch (NumberFormatException e) {
+            return 0;
+          }
+        }
+      }
+    }
+    long date = headers.getDate();
+    if (date < 0) date = System.currentTimeMillis();
+    return date + maxAgeSeconds * 1000L;
+  }
+
+  static final class Entry {
+    final HttpHeaders headers;
+    final byte[] body;
+    final String etag;
+    final long expiresMillis;
+
+    Entry(HttpHeaders headers, byte[] body, String etag, long expiresMillis) {
+      this.headers = headers;
+      this.body = body;
+      this.etag = etag;
+      this.expiresMillis = expiresMillis;
+    }
+
+    ClientHttpResponse response() {
+      return new ClientHttpResponse() {
+        @Override public HttpStatus getStatusCode() {
+          return HttpStatus.OK;
+        }
+
+        @Override public int getRawStatusCode() {
+          return HttpStatus.OK.value();
+        }
+
+        @Override public String getStatusText() {
+          return HttpStatus.OK.getReasonPhrase();
+        }
+
+        @Override public HttpHeaders getHeaders() {
+          HttpHeaders result = new HttpHeaders();
+          result.putAll(headers);
+          return result;
+        }
+
+        @Override public InputStream getBody() {
+          return new ByteArrayInputStream(body);
+        }
+
+        @Override public void close() {
+        }
+      };
+    }
+  }
+}
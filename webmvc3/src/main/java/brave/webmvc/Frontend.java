@@ -1,6 +1,7 @@
 package brave.webmvc;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -10,10 +11,11 @@ import org.springframework.web.client.RestTemplate;
 @Controller
 public class Frontend {
   @Autowired RestTemplate template;
+  @Value("${backend.url:http://localhost:9000/api}") String backendUrl;
 
   @RequestMapping("/")
   public ResponseEntity<String> callBackend() {
-    String result = template.getForObject("http://localhost:9000/api", String.class);
+    String result = template.getForObject(backendUrl, String.class);
     return new ResponseEntity<String>(result, HttpStatus.OK);
   }
 }
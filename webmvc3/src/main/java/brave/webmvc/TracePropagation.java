@@ -0,0 +1,189 @@
+package brave.webmvc;
+
+import brave.Span;
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Propagates the trace context in the headers of one {@link Format}, while accepting any of them
+ * inbound. This lets a service send fewer header bytes without its callers changing first.
+ *
+ * <p>On extract, a W3C "traceparent" header is used if valid, otherwise B3 single or multiple
+ * headers. W3C trace IDs are 128-bit, so 64-bit IDs are padded with zeros on the left.
+ *
+ * <p>B3 lets a server share its caller's span ID, but W3C has no shared spans. So, a traceparent
+ * is extracted as a new span whose parent is the caller's. A server joining it still reports its
+ * own span ID, under the caller's span, even though Brave marks it shared.
+ *
+ * <p>Each example builds on its own, so this file is copied into webmvc25, webmvc3, webmvc4 and
+ * webmvc4-boot. Keep the copies identical.
+ */
+public final class TracePropagation extends Propagation.Factory {
+  /** How the trace context is written to outbound requests */
+  public enum Format {
+    /** "X-B3-TraceId", "X-B3-SpanId", "X-B3-ParentSpanId" and "X-B3-Sampled": about 120 bytes */
+    B3_MULTI,
+    /** "b3: {traceId}-{spanId}-{sampled}": about 40 bytes */
+    B3_SINGLE,
+    /** "traceparent: 00-{traceId}-{spanId}-{flags}": 70 bytes, also read by non-Zipkin tracers */
+    W3C
+  }
+
+  /** Returns a factory for the {@code zipkin.propagation} property. */
+  public static Propagation.Factory create(Format format) {
+    if (format == null) throw new NullPointerException("format == null");
+    return new TracePropagation(format);
+  }
+
+  static final String TRACEPARENT = "traceparent";
+
+  final Format format;
+  final Propagation.Factory b3;
+
+  TracePropagation(Format format) {
+    this.format = format;
+    // B3 extraction accepts single and multiple header formats, whichever is injected
+    if (format == Format.B3_SINGLE) {
+      b3 = B3Propagation.newFactoryBuilder()
+          .injectFormat(B3Propagation.Format.SINGLE_NO_PARENT)
+          // http clients inject as CLIENT, which otherwise keeps multiple headers
+          .injectFormat(Span.Kind.CLIENT, B3Propagation.Format.SINGLE_NO_PARENT)
+          .build();
+    } else {
+      b3 = B3Propagation.FACTORY;
+    }
+  }
+
+  @Override public boolean supportsJoin() {
+    return b3.supportsJoin();
+  }
+
+  @Override public <K> Propagation<K> create(Propagation.KeyFactory<K> keyFactory) {
+    return new TracePropagationImpl<K>(this, b3.create(keyFactory), keyFactory.create(TRACEPARENT));
+  }
+
+  @Override public String toString() {
+    return "TracePropagation{" + format + "}";
+  }
+
+  static final class TracePropagationImpl<K> implements Propagation<K> {
+    final Format format;
+    final Propagation<K> b3;
+    final K traceparentKey;
+    final List<K> keys;
+
+    TracePropagationImpl(TracePropagation factory, Propagation<K> b3, K traceparentKey) {
+      this.format = factory.format;
+      this.b3 = b3;
+      this.traceparentKey = traceparentKey;
+      List<K> keys = new ArrayList<K>(b3.keys());
+      keys.add(traceparentKey);
+      this.keys = Collections.unmodifiableList(keys);
+    }
+
+    @Override public List<K> keys() {
+      return keys;
+    }
+
+    @Override public <R> TraceContext.Injector<R> injector(final Setter<R, K> setter) {
+      if (setter == null) throw new NullPointerException("setter == null");
+      if (format != Format.W3C) return b3.injector(setter);
+      return new TraceContext.Injector<R>() {
+        @Override public void inject(TraceContext context, R request) {
+          setter.put(request, traceparentKey, writeTraceparent(context));
+        }
+      };
+    }
+
+    @Override public <R> TraceContext.Extractor<R> extractor(final Getter<R, K> getter) {
+      if (getter == null) throw new NullPointerException("getter == null");
+      final TraceContext.Extractor<R> b3Extractor = b3.extractor(getter);
+      return new TraceContext.Extractor<R>() {
+        @Override public TraceContextOrSamplingFlags extract(R request) {
+          String traceparent = getter.get(request, traceparentKey);
+          if (traceparent != null) {
+            TraceContext context = parseTraceparent(traceparent);
+            if (context != null) return TraceContextOrSamplingFlags.create(childOf(context));
+          }
+          return b3Extractor.extract(request);
+        }
+      };
+    }
+  }
+
+  static final String ZERO_HIGH = "0000000000000000";
+  static final Random RANDOM = new Random();
+
+  /** Returns a context with a new span ID, whose parent is the given caller's span. */
+  static TraceContext childOf(TraceContext caller) {
+    long spanId;
+    do {
+      spanId = RANDOM.nextLong();
+    } while (spanId == 0L);
+    return caller.toBuilder().parentId(caller.spanId()).spanId(spanId).build();
+  }
+
+  /** Returns a version 00 traceparent value, with the sampled flag set if the trace is. */
+  static String writeTraceparent(TraceContext context) {
+    StringBuilder result = new StringBuilder(55).append("00-");
+    if (context.traceIdHigh() == 0L) result.append(ZERO_HIGH);
+    result.append(context.traceIdString()).append('-').append(context.spanIdString());
+    return result.append(Boolean.TRUE.equals(context.sampled()) ? "-01" : "-00").toString();
+  }
+
+  /**
+   * Parses "{version}-{traceId}-{spanId}-{flags}", or returns null if malformed. Version 00 values
+   * are exactly 55 characters. Values from later versions are read the same way, as they must start
+   * with these fields, and may continue after a '-'.
+   */
+  static TraceContext parseTraceparent(String traceparent) {
+    if (traceparent.length() < 55) return null;
+    if (traceparent.length() > 55
+        && (traceparent.startsWith("00") || traceparent.charAt(55) != '-')) {
+      return null;
+    }
+    if (traceparent.startsWith("ff") || traceparent.charAt(2) != '-'
+        || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') {
+      return null;
+    }
+    if (!isLowerHex(traceparent, 0, 2) || !isLowerHex(traceparent, 3, 35)
+        || !isLowerHex(traceparent, 36, 52) || !isLowerHex(traceparent, 53, 55)) {
+      return null;
+    }
+    long traceIdHigh = parseHex(traceparent, 3), traceId = parseHex(traceparent, 19);
+    long spanId = parseHex(traceparent, 36);
+    int flags = Character.digit(traceparent.charAt(54), 16);
+    // All zeros is invalid, and Brave also requires the lower 64 bits of the trace ID
+    if (traceId == 0L || spanId == 0L) return null;
+    return TraceContext.newBuilder()
+        .traceIdHigh(traceIdHigh)
+        .traceId(traceId)
+        .spanId(spanId)
+        .sampled((flags & 1) == 1)
+        .build();
+  }
+
+  static boolean isLowerHex(String value, int beginIndex, int endIndex) {
+    for (int i = beginIndex; i < endIndex; i++) {
+      char c = value.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+    }
+    return true;
+  }
+
+  /** Parses 16 lower-hex characters, already validated by {@link #isLowerHex} */
+  static long parseHex(String value, int offset) {
+    long result = 0L;
+    for (int i = offset; i < offset + 16; i++) {
+      char c = value.charAt(i);
+      result = (result << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+    }
+    return result;
+  }
+}
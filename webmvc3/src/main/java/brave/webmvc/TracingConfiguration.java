@@ -0,0 +1,129 @@
+package brave.webmvc;
+
+import static brave.http.HttpRequestMatchers.pathStartsWith;
+
+import brave.CurrentSpanCustomizer;
+import brave.SpanCustomizer;
+import brave.Tracing;
+import brave.baggage.BaggageField;
+import brave.baggage.BaggagePropagation;
+import brave.baggage.BaggagePropagationConfig.SingleBaggageField;
+import brave.baggage.CorrelationScopeConfig.SingleCorrelationField;
+import brave.context.log4j12.MDCScopeDecorator;
+import brave.handler.SpanHandler;
+import brave.http.HttpRequest;
+import brave.http.HttpRuleSampler;
+import brave.http.HttpTracing;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
+import brave.propagation.Propagation;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import brave.webmvc.TracePropagation.Format;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
+
+/**
+ * The root application context, which configures tracing. {@code spring-webmvc-servlet.xml} refers
+ * to {@link #httpTracing} and {@link #userNameBaggageField} by name.
+ *
+ * <p>This was {@code applicationContext.xml}. As code, its bean definitions are compiled with the
+ * application, so startup neither parses XML nor converts property strings through factory beans.
+ * web.xml reads it with an {@code AnnotationConfigWebApplicationContext}, which registers this
+ * class without scanning the classpath.
+ */
+@Configuration
+public class TracingConfiguration {
+  /** Resolves the {@code ${name:default}} placeholders below from system properties */
+  @Bean static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
+    return new PropertySourcesPlaceholderConfigurer();
+  }
+
+  /** PROTO3 messages are about half the size of JSON, but need Zipkin 2.8+ */
+  @Value("${zipkin.encoding:JSON}") Encoding encoding;
+
+  /** "gzip" or "none": gzip usually shrinks messages 5-10x */
+  @Value("${zipkin.compression:gzip}") String compression;
+
+  /** the largest message Zipkin accepts, after compression, so batches fill several times more */
+  @Value("${zipkin.messageMaxBytes:5242880}") int messageMaxBytes;
+
+  /** Configuration for how to send spans to Zipkin */
+  @Bean Sender sender() {
+    return CompressingSender.newBuilder("http://localhost:9411/api/v2/spans")
+        .encoding(encoding)
+        .codec(CompressingSender.codec(compression))
+        .messageMaxBytes(messageMaxBytes)
+        .build();
+  }
+
+  /** Configuration for how to buffer spans into messages for Zipkin */
+  @Bean SpanHandler zipkinSpanHandler() {
+    return AsyncZipkinSpanHandler.newBuilder(sender())
+        // wait up to half a second for any in-flight spans on close
+        .closeTimeout(500, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /** Defines a propagated field "userName" that uses the remote header "user_name" */
+  @Bean BaggageField userNameBaggageField() {
+    return BaggageField.create("userName");
+  }
+
+  /** Trace headers sent to the backend: B3_MULTI, B3_SINGLE or W3C. All are accepted inbound. */
+  @Value("${zipkin.propagation:B3_MULTI}") Format propagationFormat;
+
+  @Bean Propagation.Factory propagationFactory() {
+    return BaggagePropagation.newFactoryBuilder(TracePropagation.create(propagationFormat))
+        .add(SingleBaggageField.newBuilder(userNameBaggageField()).addKeyName("user_name").build())
+        .build();
+  }
+
+  /** Allows log patterns to use %{traceId} %{spanId} and %{userName} */
+  @Bean ScopeDecorator correlationScopeDecorator() {
+    return MDCScopeDecorator.newBuilder()
+        .add(SingleCorrelationField.create(userNameBaggageField())).build();
+  }
+
+  /** Controls aspects of tracing such as the service name that shows up in the UI */
+  @Bean Tracing tracing(@Value("${zipkin.service:brave-webmvc-example}") String serviceName,
+      @Value("${zipkin.sampler.tracesPerSecond:100}") int tracesPerSecond) {
+    return Tracing.newBuilder()
+        .localServiceName(serviceName)
+        // Above this rate, traces are sampled evenly instead of all recorded
+        .sampler(RateLimitingSampler.create(tracesPerSecond))
+        .propagationFactory(propagationFactory())
+        .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+            .addScopeDecorator(correlationScopeDecorator())
+            .build()
+        )
+        .addSpanHandler(zipkinSpanHandler())
+        .build();
+  }
+
+  /** Allows someone to add tags to a span if a trace is in progress, via SpanCustomizer */
+  @Bean SpanCustomizer spanCustomizer(Tracing tracing) {
+    return CurrentSpanCustomizer.create(tracing);
+  }
+
+  /** Decides how to name and tag spans. By default they are named the same as the http method. */
+  @Bean HttpTracing httpTracing(Tracing tracing, SamplerFunction<HttpRequest> serverSampler) {
+    return HttpTracing.newBuilder(tracing).serverSampler(serverSampler).build();
+  }
+
+  /** Overrides the trace sampler by path prefix, in traces per second. Zero means never. */
+  @Bean SamplerFunction<HttpRequest> serverSampler(
+      @Value("${zipkin.sampler.api.tracesPerSecond:10}") int apiTracesPerSecond) {
+    return HttpRuleSampler.newBuilder()
+        .putRule(pathStartsWith("/health"), Sampler.NEVER_SAMPLE)
+        .putRule(pathStartsWith("/api"), RateLimitingSampler.create(apiTracesPerSecond))
+        .build();
+  }
+}
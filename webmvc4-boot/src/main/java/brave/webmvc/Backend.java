@@ -1,6 +1,7 @@
 package brave.webmvc;
 
-import java.util.Date;
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -10,13 +11,13 @@ import org.springframework.web.bind.annotation.RestController;
 @EnableAutoConfiguration
 @RestController
 public class Backend {
+  final CachedDate date = new CachedDate();
 
   @RequestMapping("/api")
-  public String printDate(@RequestHeader(name = "user_name", required = false) String username) {
-    if (username != null) {
-      return new Date().toString() + " " + username;
-    }
-    return new Date().toString();
+  public void printDate(@RequestHeader(name = "user_name", required = false) String username,
+      @RequestHeader(name = "If-None-Match", required = false) String ifNoneMatch,
+      HttpServletResponse response) throws IOException {
+    date.writeTo(username, ifNoneMatch, response);
   }
 
   public static void main(String[] args) {
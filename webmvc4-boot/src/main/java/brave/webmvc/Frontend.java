@@ -1,6 +1,7 @@
 package brave.webmvc;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.web.client.RestTemplateBuilder;
@@ -15,13 +16,19 @@ import org.springframework.web.client.RestTemplate;
 public class Frontend {
 
   final RestTemplate restTemplate;
+  final String backendUrl;
 
-  @Autowired Frontend(RestTemplateBuilder restTemplateBuilder) {
-    this.restTemplate = restTemplateBuilder.build();
+  @Autowired Frontend(RestTemplateBuilder restTemplateBuilder,
+      @Value("${backend.url:http://localhost:9000/api}") String backendUrl,
+      @Value("${frontend.httpCache.maximumSize:1000}") int httpCacheMaximumSize) {
+    // The backend's responses are cacheable, and vary on the user name baggage
+    this.restTemplate = restTemplateBuilder.additionalInterceptors(new ConditionalGetInterceptor(
+        TracingConfiguration.USER_NAME, httpCacheMaximumSize)).build();
+    this.backendUrl = backendUrl;
   }
 
   @RequestMapping("/") public String callBackend() {
-    return restTemplate.getForObject("http://localhost:9000/api", String.class);
+    return restTemplate.getForObject(backendUrl, String.class);
   }
 
   public static void main(String[] args) {
@@ -1,5 +1,7 @@
 package brave.webmvc;
 
+import static brave.http.HttpRequestMatchers.pathStartsWith;
+
 import brave.CurrentSpanCustomizer;
 import brave.SpanCustomizer;
 import brave.Tracing;
@@ -8,14 +10,19 @@ import brave.baggage.BaggagePropagation;
 import brave.baggage.BaggagePropagationConfig.SingleBaggageField;
 import brave.baggage.CorrelationScopeConfig.SingleCorrelationField;
 import brave.context.slf4j.MDCScopeDecorator;
+import brave.http.HttpRequest;
+import brave.http.HttpRuleSampler;
 import brave.http.HttpTracing;
 import brave.httpclient.TracingHttpClientBuilder;
-import brave.propagation.B3Propagation;
 import brave.propagation.CurrentTraceContext.ScopeDecorator;
 import brave.propagation.Propagation;
 import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
 import brave.servlet.TracingFilter;
 import brave.spring.webmvc.SpanCustomizingAsyncHandlerInterceptor;
+import brave.webmvc.TracePropagation.Format;
 import javax.servlet.Filter;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,9 +35,9 @@ import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import zipkin2.codec.Encoding;
 import zipkin2.reporter.Sender;
 import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
-import zipkin2.reporter.okhttp3.OkHttpSender;
 
 /**
  * This adds tracing configuration to any web mvc controllers or rest template clients.
@@ -47,16 +54,36 @@ public class TracingConfiguration extends WebMvcConfigurerAdapter {
         .add(SingleCorrelationField.create(USER_NAME)).build();
   }
 
+  /** Trace headers sent to the backend. All formats are accepted from callers. */
+  // Initialized as benchmarks construct this class directly
+  @Value("${zipkin.propagation:B3_MULTI}") Format propagationFormat = Format.B3_MULTI;
+
   /** Configures propagation for {@link #USER_NAME}, using the remote header "user_name" */
   @Bean Propagation.Factory propagationFactory() {
-    return BaggagePropagation.newFactoryBuilder(B3Propagation.FACTORY)
+    return BaggagePropagation.newFactoryBuilder(TracePropagation.create(propagationFormat))
         .add(SingleBaggageField.newBuilder(USER_NAME).addKeyName("user_name").build())
         .build();
   }
 
+  /** Span encoding posted to Zipkin: PROTO3 messages are about half the size of JSON */
+  @Value("${zipkin.encoding:JSON}") Encoding encoding;
+
+  /** "gzip" or "none": gzip usually shrinks span messages 5-10x */
+  @Value("${zipkin.compression:gzip}") String compression;
+
+  /** Largest message Zipkin accepts, after compression, so batches fill several times more */
+  @Value("${zipkin.messageMaxBytes:5242880}") int messageMaxBytes;
+
+  /** Zipkin's span intake, overridden by load tests to point at a stub collector */
+  @Value("${zipkin.endpoint:http://127.0.0.1:9411/api/v2/spans}") String endpoint;
+
   /** Configuration for how to send spans to Zipkin */
   @Bean Sender sender() {
-    return OkHttpSender.create("http://127.0.0.1:9411/api/v2/spans");
+    return CompressingSender.newBuilder(endpoint)
+        .encoding(encoding)
+        .codec(CompressingSender.codec(compression))
+        .messageMaxBytes(messageMaxBytes)
+        .build();
   }
 
   /** Configuration for how to buffer spans into messages for Zipkin */
@@ -65,9 +92,12 @@ public class TracingConfiguration extends WebMvcConfigurerAdapter {
   }
 
   /** Controls aspects of tracing such as the service name that shows up in the UI */
-  @Bean Tracing tracing(@Value("${zipkin.service:brave-webmvc-example}") String serviceName) {
+  @Bean Tracing tracing(@Value("${zipkin.service:brave-webmvc-example}") String serviceName,
+      @Value("${zipkin.sampler.tracesPerSecond:100}") int tracesPerSecond) {
     return Tracing.newBuilder()
         .localServiceName(serviceName)
+        // Above this rate, traces are sampled evenly instead of all recorded and reported
+        .sampler(RateLimitingSampler.create(tracesPerSecond))
         .propagationFactory(propagationFactory())
         .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
             .addScopeDecorator(correlationScopeDecorator())
@@ -82,8 +112,20 @@ public class TracingConfiguration extends WebMvcConfigurerAdapter {
   }
 
   /** Decides how to name and tag spans. By default they are named the same as the http method. */
-  @Bean HttpTracing httpTracing(Tracing tracing) {
-    return HttpTracing.create(tracing);
+  @Bean HttpTracing httpTracing(Tracing tracing, SamplerFunction<HttpRequest> serverSampler) {
+    return HttpTracing.newBuilder(tracing).serverSampler(serverSampler).build();
+  }
+
+  /**
+   * Overrides the trace sampler for server requests by path: health checks are never sampled, and
+   * the backend api is limited separately. Requests that match no rule use the trace sampler.
+   */
+  @Bean SamplerFunction<HttpRequest> serverSampler(
+      @Value("${zipkin.sampler.api.tracesPerSecond:10}") int apiTracesPerSecond) {
+    return HttpRuleSampler.newBuilder()
+        .putRule(pathStartsWith("/health"), Sampler.NEVER_SAMPLE)
+        .putRule(pathStartsWith("/api"), RateLimitingSampler.create(apiTracesPerSecond))
+        .build();
   }
 
   /** Creates server spans for http requests */
@@ -91,8 +133,17 @@ public class TracingConfiguration extends WebMvcConfigurerAdapter {
     return TracingFilter.create(httpTracing);
   }
 
-  @Bean RestTemplateCustomizer useTracedHttpClient(HttpTracing httpTracing) {
-    final CloseableHttpClient httpClient = TracingHttpClientBuilder.create(httpTracing).build();
+  /**
+   * Adds tracing to the rest template's http client. The client defaults to two connections per
+   * route, which would cap concurrent calls to the backend regardless of server threads.
+   */
+  @Bean RestTemplateCustomizer useTracedHttpClient(HttpTracing httpTracing,
+      @Value("${httpclient.maxTotal:200}") int maxTotal,
+      @Value("${httpclient.maxPerRoute:100}") int maxPerRoute) {
+    final CloseableHttpClient httpClient = TracingHttpClientBuilder.create(httpTracing)
+        .setMaxConnTotal(maxTotal)
+        .setMaxConnPerRoute(maxPerRoute)
+        .build();
     return new RestTemplateCustomizer() {
       @Override public void customize(RestTemplate restTemplate) {
         restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
@@ -0,0 +1,34 @@
+package brave.webmvc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Creates virtual threads reflectively, as this example compiles for Java 7. */
+final class VirtualThreads {
+  /**
+   * Like {@code Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory())}
+   *
+   * @throws IllegalStateException if the JDK is older than 21
+   */
+  static ExecutorService newThreadPerTaskExecutor(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, prefix, 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, factory);
+    } catch (NoSuchMethodException | ClassNotFoundException e) {
+      throw new IllegalStateException("virtual threads require JDK 21 or later", e);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("couldn't create a virtual thread executor", e);
+    }
+  }
+
+  private VirtualThreads() {
+  }
+}
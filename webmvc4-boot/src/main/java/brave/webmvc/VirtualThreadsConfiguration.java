@@ -0,0 +1,155 @@
+package brave.webmvc;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatConnectorCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Runs servlet requests on virtual threads when {@code --spring.threads.virtual.enabled=true}, so
+ * a frontend blocked on the backend doesn't hold a platform thread. This needs JDK 21 or later.
+ *
+ * <p>Tracing needs no changes: {@code ThreadLocalCurrentTraceContext} and the MDC are thread
+ * locals, and each request gets a new virtual thread. {@link CorrelationLeakFilter} checks that
+ * nothing is left in the MDC when a request completes, and {@link CorrelationCheckInterceptor}
+ * that controllers see the MDC of their own trace. The load tests fail if either counts any.
+ */
+@Configuration
+@ConditionalOnProperty("spring.threads.virtual.enabled")
+public class VirtualThreadsConfiguration extends WebMvcConfigurerAdapter {
+  static final Logger logger = LoggerFactory.getLogger(VirtualThreadsConfiguration.class);
+
+  @Bean(destroyMethod = "shutdown") ExecutorService virtualThreadExecutor() {
+    return VirtualThreads.newThreadPerTaskExecutor("http-virtual-");
+  }
+
+  /** Replaces Tomcat's worker pool, so {@code server.tomcat.max-threads} no longer applies */
+  @Bean EmbeddedServletContainerCustomizer useVirtualThreads(final ExecutorService executor) {
+    return new EmbeddedServletContainerCustomizer() {
+      @Override public void customize(ConfigurableEmbeddedServletContainer container) {
+        if (!(container instanceof TomcatEmbeddedServletContainerFactory)) return;
+        ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(
+            new TomcatConnectorCustomizer() {
+              @Override public void customize(Connector connector) {
+                ProtocolHandler handler = connector.getProtocolHandler();
+                if (handler instanceof AbstractProtocol) {
+                  ((AbstractProtocol<?>) handler).setExecutor(executor);
+                }
+              }
+            });
+      }
+    };
+  }
+
+  @Bean CorrelationLeakFilter correlationLeakFilter() {
+    return new CorrelationLeakFilter();
+  }
+
+  /** Wraps the tracing filter, so it sees the MDC after the server span's scope closes */
+  @Bean FilterRegistrationBean correlationLeakFilterRegistration() {
+    FilterRegistrationBean result = new FilterRegistrationBean(correlationLeakFilter());
+    result.setOrder(Ordered.HIGHEST_PRECEDENCE);
+    return result;
+  }
+
+  @Bean CorrelationCheckInterceptor correlationCheckInterceptor() {
+    return new CorrelationCheckInterceptor();
+  }
+
+  @Override public void addInterceptors(InterceptorRegistry registry) {
+    registry.addInterceptor(correlationCheckInterceptor());
+  }
+
+  /**
+   * Logs when a trace ID or user name is in the MDC before or after a request, which means a scope
+   * leaked. A carrier thread's values would show up here if the MDC weren't per virtual thread.
+   */
+  static final class CorrelationLeakFilter implements Filter {
+    final AtomicLong leaks = new AtomicLong();
+
+    /** Requests that started or ended with a trace ID or user name in the MDC */
+    long leaks() {
+      return leaks.get();
+    }
+
+    @Override public void doFilter(ServletRequest request, ServletResponse response,
+        FilterChain chain) throws IOException, ServletException {
+      check("before");
+      try {
+        chain.doFilter(request, response);
+      } finally {
+        check("after");
+      }
+    }
+
+    void check(String when) {
+      String traceId = MDC.get("traceId"), userName = MDC.get("userName");
+      if (traceId == null && userName == null) return;
+      logger.warn("traceId {} userName {} were in the MDC {} a request on {}: "
+              + "{} leaks since startup",
+          traceId, userName, when, Thread.currentThread(), leaks.incrementAndGet());
+    }
+
+    @Override public void init(FilterConfig filterConfig) {
+    }
+
+    @Override public void destroy() {
+    }
+  }
+
+  /** Logs when the MDC doesn't match the trace context of the request a controller handles */
+  static final class CorrelationCheckInterceptor extends HandlerInterceptorAdapter {
+    final AtomicLong mismatches = new AtomicLong();
+
+    /** Requests whose controller saw another trace ID or user name in the MDC */
+    long mismatches() {
+      return mismatches.get();
+    }
+
+    @Override public boolean preHandle(HttpServletRequest request, HttpServletResponse response,
+        Object handler) {
+      Tracing tracing = Tracing.current();
+      TraceContext context = tracing != null ? tracing.currentTraceContext().get() : null;
+      if (context == null) return true; // untraced, so there's nothing to correlate
+      String traceId = MDC.get("traceId"), userName = MDC.get("userName");
+      if (!context.traceIdString().equals(traceId)
+          || !equal(TracingConfiguration.USER_NAME.getValue(context), userName)) {
+        logger.warn("MDC had traceId {} userName {} in trace {} on {}: {} mismatches since startup",
+            traceId, userName, context.traceIdString(), Thread.currentThread(),
+            mismatches.incrementAndGet());
+      }
+      return true;
+    }
+
+    static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+}
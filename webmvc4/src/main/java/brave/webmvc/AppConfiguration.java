@@ -1,22 +1,87 @@
 package brave.webmvc;
 
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.client.HttpAsyncClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.EnableMBeanExport;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 
-/** The application is simple, it only uses Web MVC and a {@linkplain RestTemplate}. */
+/**
+ * The application is simple, it only uses Web MVC and a {@linkplain RestTemplate}, or an {@linkplain
+ * AsyncRestTemplate} for the non-blocking endpoint.
+ */
 @EnableWebMvc
+@EnableMBeanExport // exposes the connection pool and cache statistics
 public class AppConfiguration {
   @Autowired(required = false)
   HttpClient httpClient;
+  @Autowired(required = false)
+  HttpAsyncClient httpAsyncClient;
+
+  /** Connections to the backend. Times are in milliseconds. */
+  @Bean ConnectionPool connectionPool(
+      @Value("${httpclient.maxTotal:200}") int maxTotal,
+      @Value("${httpclient.maxPerRoute:100}") int maxPerRoute,
+      @Value("${httpclient.validateAfterInactivity:2000}") int validateAfterInactivity,
+      @Value("${httpclient.idleTimeout:30000}") long idleTimeout,
+      @Value("${httpclient.keepAlive:30000}") long keepAlive) {
+    return new ConnectionPool(maxTotal, maxPerRoute, validateAfterInactivity, idleTimeout,
+        keepAlive);
+  }
+
+  /** Backend responses by user, each kept until the backend's max-age ends, at most the ttl */
+  @Bean TinyLfuCache<String, String> backendCache(
+      @Value("${frontend.cache.maximumSize:10000}") int maximumSize,
+      @Value("${frontend.cache.ttl:1000}") long ttl) {
+    return new TinyLfuCache<>(maximumSize, ttl, TimeUnit.MILLISECONDS);
+  }
 
-  @Bean RestTemplate restTemplate() {
+  /**
+   * Concurrent misses for the same user share a backend call. Others wait no longer than the call
+   * itself may take.
+   */
+  @Bean SingleFlight<String, Frontend.BackendResponse> backendCalls(
+      @Value("${frontend.backendTimeout:5000}") long backendTimeout) {
+    return new SingleFlight<>(backendTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  @Bean RestTemplate restTemplate(ConnectionPool connectionPool,
+      @Value("${frontend.httpCache.maximumSize:1000}") int httpCacheMaximumSize,
+      @Value("${frontend.backendTimeout:5000}") int backendTimeout) {
     HttpClient httpClient = this.httpClient;
-    if (httpClient == null) httpClient = HttpClients.createDefault();
-    return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+    if (httpClient == null) httpClient = connectionPool.configure(HttpClients.custom()).build();
+    HttpComponentsClientHttpRequestFactory requestFactory =
+        new HttpComponentsClientHttpRequestFactory(httpClient);
+    requestFactory.setConnectTimeout(backendTimeout);
+    requestFactory.setReadTimeout(backendTimeout);
+    RestTemplate result = new RestTemplate(requestFactory);
+    // The backend's responses are cacheable, and vary on the user name baggage
+    result.setInterceptors(Collections.<ClientHttpRequestInterceptor>singletonList(
+        new ConditionalGetInterceptor(TracingConfiguration.USER_NAME, httpCacheMaximumSize)));
+    return result;
+  }
+
+  @Bean AsyncRestTemplate asyncRestTemplate(ConnectionPool connectionPool,
+      @Value("${frontend.backendTimeout:5000}") int backendTimeout) {
+    HttpAsyncClient httpAsyncClient = this.httpAsyncClient;
+    if (httpAsyncClient == null) {
+      httpAsyncClient = connectionPool.configure(HttpAsyncClients.custom()).build();
+    }
+    HttpComponentsAsyncClientHttpRequestFactory requestFactory =
+        new HttpComponentsAsyncClientHttpRequestFactory(httpAsyncClient);
+    requestFactory.setConnectTimeout(backendTimeout);
+    requestFactory.setReadTimeout(backendTimeout);
+    return new AsyncRestTemplate(requestFactory);
   }
 }
@@ -1,7 +1,7 @@
 package brave.webmvc;
 
-import java.util.Date;
-
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -14,14 +14,15 @@ import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 @EnableWebMvc
 @RestController
 public class Backend {
+    final CachedDate date = new CachedDate();
 
     @RequestMapping("/api")
-    public String printDate(@RequestHeader(name = "user_name", required = false) String username) {
-        if (username != null) {
-            return new Date().toString() + " " + username;
+    public void printDate(@RequestHeader(name = "user_name", required = false) String username,
+                          @RequestHeader(name = "If-None-Match", required = false) String ifNoneMatch,
+                          HttpServletResponse response) throws IOException {
+        date.writeTo(username, ifNoneMatch, response);
+        if (username == null) {
+            log.info("username={};s={};", username, date);
         }
-        String s = new Date().toString();
-        log.info("username={};s={};", username, s);
-        return s;
     }
 }
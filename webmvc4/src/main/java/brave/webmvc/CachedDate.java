@@ -0,0 +1,114 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import java.util.Date;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Renders {@link Date#toString()} once per second, so the backend can write it to the response
+ * without allocating. The previous rendering is replaced when the second changes.
+ *
+ * <p>Responses are cacheable until the next second. The {@code Date} header is truncated to the
+ * same second as the body, so a {@code max-age} of one second ends exactly on the boundary. The
+ * weak ETag is derived from that second and the user name, which is also why responses vary on
+ * the "user_name" header. The user name is hex-encoded into the ETag as written to the body, so
+ * different bodies never share an ETag.
+ */
+final class CachedDate {
+  static final String CONTENT_TYPE = "text/plain;charset=ISO-8859-1";
+  static final String CACHE_CONTROL = "max-age=1";
+  static final String VARY = "user_name";
+
+  static final class Rendered {
+    final long epochSecond;
+    final String text;
+    final byte[] bytes;
+    final String etagPrefix, etag;
+
+    Rendered(long epochSecond) {
+      this.epochSecond = epochSecond;
+      this.text = new Date(epochSecond * 1000L).toString();
+      this.bytes = new byte[text.length()];
+      for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) text.charAt(i); // always ASCII
+      this.etagPrefix = "W/\"" + Long.toHexString(epochSecond);
+      this.etag = etagPrefix + '"';
+    }
+  }
+
+  volatile Rendered rendered = new Rendered(System.currentTimeMillis() / 1000L);
+
+  Rendered current() {
+    long epochSecond = System.currentTimeMillis() / 1000L;
+    Rendered result = rendered;
+    if (result.epochSecond != epochSecond) rendered = result = new Rendered(epochSecond);
+    return result;
+  }
+
+  /**
+   * Writes the date, followed by a space and the user name when present. When the request's
+   * {@code If-None-Match} has the same ETag, this writes a 304 with no body instead.
+   */
+  void writeTo(String username, String ifNoneMatch, HttpServletResponse response)
+      throws IOException {
+    Rendered rendered = current();
+    byte[] body = rendered.bytes;
+    String etag = rendered.etag;
+    if (username != null) {
+      body = withUserName(rendered.bytes, username);
+      etag = rendered.etagPrefix + '-' + toHex(body, rendered.bytes.length + 1) + '"';
+    }
+    response.setDateHeader("Date", rendered.epochSecond * 1000L);
+    response.setHeader("Cache-Control", CACHE_CONTROL);
+    response.setHeader("Vary", VARY);
+    response.setHeader("ETag", etag);
+    if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    response.setContentType(CONTENT_TYPE);
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body, 0, body.length);
+  }
+
+  /** Weak comparison of an {@code If-None-Match} header with our ETag, per RFC 7232 */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch.trim().equals("*")) return true;
+    String opaqueTag = etag.substring(2); // without "W/"
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+      if (candidate.equals(opaqueTag)) return true;
+    }
+    return false;
+  }
+
+  /** Returns the date, a space and the user name, encoded like {@code getBytes("ISO-8859-1")}. */
+  static byte[] withUserName(byte[] date, String username) {
+    byte[] result = new byte[date.length + 1 + username.length()];
+    System.arraycopy(date, 0, result, 0, date.length);
+    int pos = date.length;
+    result[pos++] = ' ';
+    for (int i = 0, length = username.length(); i < length; i++) {
+      char c = username.charAt(i);
+      result[pos++] = (byte) (c <= 0xff ? c : '?');
+    }
+    return result;
+  }
+
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** Lower-hex encodes the bytes from {@code offset} to the end of the array. */
+  static String toHex(byte[] bytes, int offset) {
+    char[] result = new char[(bytes.length - offset) * 2];
+    for (int i = offset, pos = 0; i < bytes.length; i++) {
+      result[pos++] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      result[pos++] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(result);
+  }
+
+  @Override public String toString() {
+    return current().text;
+  }
+}
@@ -0,0 +1,181 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Pools connections to the backend, recording how long callers wait to lease one.
+ *
+ * <p>Without this, the client defaults to 2 connections per route, which means frontend threads
+ * queue for the single route to the backend under load. The JMX attributes here are for sizing:
+ * if {@link #getPending() pending} or {@link #getLeaseWaitMillisMax() wait time} stay high,
+ * raise {@code httpclient.maxPerRoute}.
+ */
+@ManagedResource(objectName = "brave.webmvc:type=ConnectionPool")
+public class ConnectionPool implements HttpClientConnectionManager {
+  final PoolingHttpClientConnectionManager delegate = new PoolingHttpClientConnectionManager();
+  final long idleTimeoutMillis;
+  final long keepAliveMillis;
+  final AtomicLong leases = new AtomicLong(), leaseTimeouts = new AtomicLong();
+  final AtomicLong leaseWaitNanos = new AtomicLong(), leaseWaitNanosMax = new AtomicLong();
+
+  ConnectionPool(int maxTotal, int maxPerRoute, int validateAfterInactivityMillis,
+      long idleTimeoutMillis, long keepAliveMillis) {
+    delegate.setMaxTotal(maxTotal);
+    delegate.setDefaultMaxPerRoute(maxPerRoute);
+    delegate.setValidateAfterInactivity(validateAfterInactivityMillis);
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.keepAliveMillis = keepAliveMillis;
+  }
+
+  /** Honors the server's keep-alive header, but never keeps a connection longer than configured. */
+  final ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+    @Override public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      long duration =
+          DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+    }
+  };
+
+  /** Uses this pool for a client, such as one from {@code TracingHttpClientBuilder}. */
+  HttpClientBuilder configure(HttpClientBuilder builder) {
+    return builder.setConnectionManager(this)
+        .setKeepAliveStrategy(keepAliveStrategy)
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Applies the same limits to a non-blocking client. Its connections live in a separate reactor
+   * managed pool, so they aren't included in the statistics here.
+   */
+  HttpAsyncClientBuilder configure(HttpAsyncClientBuilder builder) {
+    return builder.setMaxConnTotal(delegate.getMaxTotal())
+        .setMaxConnPerRoute(delegate.getDefaultMaxPerRoute())
+        .setKeepAliveStrategy(keepAliveStrategy);
+  }
+
+  @Override public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+    final ConnectionRequest request = delegate.requestConnection(route, state);
+    return new ConnectionRequest() {
+      @Override public HttpClientConnection get(long timeout, TimeUnit tunit)
+          throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        long start = System.nanoTime();
+        try {
+          return request.get(timeout, tunit);
+        } catch (ConnectionPoolTimeoutException e) {
+          leaseTimeouts.incrementAndGet();
+          throw e;
+        } finally {
+          recordLeaseWait(System.nanoTime() - start);
+        }
+      }
+
+      @Override public boolean cancel() {
+        return request.cancel();
+      }
+    };
+  }
+
+  void recordLeaseWait(long nanos) {
+    leases.incrementAndGet();
+    leaseWaitNanos.addAndGet(nanos);
+    long max;
+    while (nanos > (max = leaseWaitNanosMax.get())) {
+      if (leaseWaitNanosMax.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  @Override public void releaseConnection(HttpClientConnection conn, Object newState,
+      long validDuration, TimeUnit timeUnit) {
+    delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+  }
+
+  @Override public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout,
+      HttpContext context) throws IOException {
+    delegate.connect(conn, route, connectTimeout, context);
+  }
+
+  @Override public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context)
+      throws IOException {
+    delegate.upgrade(conn, route, context);
+  }
+
+  @Override public void routeComplete(HttpClientConnection conn, HttpRoute route,
+      HttpContext context) throws IOException {
+    delegate.routeComplete(conn, route, context);
+  }
+
+  @Override public void closeIdleConnections(long idletime, TimeUnit tunit) {
+    delegate.closeIdleConnections(idletime, tunit);
+  }
+
+  @Override public void closeExpiredConnections() {
+    delegate.closeExpiredConnections();
+  }
+
+  @Override public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @ManagedAttribute(description = "Connections currently leased to requests")
+  public int getLeased() {
+    return stats().getLeased();
+  }
+
+  @ManagedAttribute(description = "Requests waiting for a connection")
+  public int getPending() {
+    return stats().getPending();
+  }
+
+  @ManagedAttribute(description = "Idle connections available to lease")
+  public int getAvailable() {
+    return stats().getAvailable();
+  }
+
+  @ManagedAttribute(description = "Maximum connections in the pool")
+  public int getMax() {
+    return stats().getMax();
+  }
+
+  @ManagedAttribute(description = "Connections leased since startup")
+  public long getLeaseCount() {
+    return leases.get();
+  }
+
+  @ManagedAttribute(description = "Leases that timed out waiting for a connection")
+  public long getLeaseTimeoutCount() {
+    return leaseTimeouts.get();
+  }
+
+  @ManagedAttribute(description = "Total time spent waiting for leases, in milliseconds")
+  public long getLeaseWaitMillisTotal() {
+    return TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos.get());
+  }
+
+  @ManagedAttribute(description = "Longest time spent waiting for a lease, in milliseconds")
+  public long getLeaseWaitMillisMax() {
+    return TimeUnit.NANOSECONDS.toMillis(leaseWaitNanosMax.get());
+  }
+
+  PoolStats stats() {
+    return delegate.getTotalStats();
+  }
+}
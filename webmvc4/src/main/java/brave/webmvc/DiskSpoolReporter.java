@@ -0,0 +1,522 @@
+package brave.webmvc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import zipkin2.Span;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+
+/**
+ * Reports spans by appending them to memory-mapped files in a directory, which a background
+ * thread drains to the {@link Sender}.
+ *
+ * <p>Unlike {@code AsyncReporter}, the backlog isn't on the heap, and isn't lost when Zipkin is
+ * unavailable: the drainer retries the same message with backoff until the sender accepts it.
+ * Spans still on disk are sent after a restart. Disk usage is bounded by {@link
+ * Builder#maxSegments(int)}: when exceeded, the oldest segment is dropped.
+ *
+ * <p>Each segment starts with a magic number and the position up to which spans were sent,
+ * followed by length-prefixed encoded spans. The length is written after the span, so a record is
+ * only visible once complete. Writes reach the page cache immediately, so survive the process
+ * crashing, but are only forced to the device after rollover and on close.
+ *
+ * <p>File system work stays off the reporting path: the drainer creates the next segment ahead of
+ * time, and forces and deletes the ones reporting moved past. Only if the drainer falls behind does
+ * {@link #report(Span)} create a segment itself. So, disk usage can be one segment over the limit.
+ */
+@Slf4j
+public final class DiskSpoolReporter implements Reporter<Span>, Closeable {
+  public static Builder newBuilder(Sender sender, File directory) {
+    return new Builder(sender, directory);
+  }
+
+  public static final class Builder {
+    final Sender sender;
+    final File directory;
+    int segmentBytes = 8 * 1024 * 1024, maxSegments = 16;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    long maxBackoffMillis = TimeUnit.SECONDS.toMillis(30);
+
+    Builder(Sender sender, File directory) {
+      if (sender == null) throw new NullPointerException("sender == null");
+      if (directory == null) throw new NullPointerException("directory == null");
+      this.sender = sender;
+      this.directory = directory;
+    }
+
+    /** Size of each memory-mapped file. Default 8MiB. */
+    public Builder segmentBytes(int segmentBytes) {
+      if (segmentBytes < 1024) throw new IllegalArgumentException("segmentBytes < 1024");
+      this.segmentBytes = segmentBytes;
+      return this;
+    }
+
+    /** Segments kept before the oldest is dropped, so disk usage is at most this times size. */
+    public Builder maxSegments(int maxSegments) {
+      if (maxSegments < 2) throw new IllegalArgumentException("maxSegments < 2");
+      this.maxSegments = maxSegments;
+      return this;
+    }
+
+    /** How long to wait for a full message before sending what's spooled. Default 1 second. */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+      this.messageTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /** Longest delay between attempts when the sender fails. Default 30 seconds. */
+    public Builder maxBackoff(long backoff, TimeUnit unit) {
+      if (backoff <= 0) throw new IllegalArgumentException("backoff <= 0");
+      this.maxBackoffMillis = unit.toMillis(backoff);
+      return this;
+    }
+
+    /**
+     * Recovers any segments left in the directory and starts the drainer.
+     *
+     * @throws IllegalStateException if the directory can't be created or read
+     */
+    public DiskSpoolReporter build() {
+      try {
+        return new DiskSpoolReporter(this);
+      } catch (IOException e) {
+        throw new IllegalStateException("couldn't open spool in " + directory, e);
+      }
+    }
+  }
+
+  static final String SUFFIX = ".spool";
+
+  final Sender sender;
+  final Encoding encoding;
+  final BytesEncoder<Span> encoder;
+  final int messageMaxBytes, segmentBytes, maxSegments;
+  final long messageTimeoutNanos, maxBackoffMillis;
+  final File directory;
+  final Thread drainer;
+  final AtomicLong spansDropped = new AtomicLong();
+
+  final Object lock = new Object();
+  final Deque<Segment> segments = new ArrayDeque<>(); // guarded by lock
+  final List<Segment> unforced = new ArrayList<>(), retired = new ArrayList<>(); // guarded by lock
+  Segment spare; // the next segment, created by the drainer. guarded by lock
+  long nextSequence; // guarded by lock
+  boolean drainerWaiting; // guarded by lock
+  volatile boolean closed;
+
+  DiskSpoolReporter(Builder builder) throws IOException {
+    sender = builder.sender;
+    encoding = sender.encoding();
+    encoder = encoder(encoding);
+    messageMaxBytes = sender.messageMaxBytes();
+    segmentBytes = builder.segmentBytes;
+    maxSegments = builder.maxSegments;
+    messageTimeoutNanos = builder.messageTimeoutNanos;
+    maxBackoffMillis = builder.maxBackoffMillis;
+    directory = builder.directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create spool directory " + directory);
+    }
+    recover();
+    drainer = new Thread(new Runnable() {
+      @Override public void run() {
+        drain();
+      }
+    }, "DiskSpoolReporter{" + sender + "}");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /** Appends the span to the current segment, rolling over to a new one when full. */
+  @Override public void report(Span span) {
+    if (span == null) throw new NullPointerException("span == null");
+    byte[] encoded = encoder.encode(span);
+    if (closed || messageSize(encoding, 1, encoded.length) > messageMaxBytes
+        || Segment.HEADER_BYTES + 4 + encoded.length > segmentBytes) {
+      spansDropped.incrementAndGet();
+      return;
+    }
+    synchronized (lock) {
+      boolean rolled = false;
+      try {
+        Segment segment = segments.peekLast();
+        if (segment == null || !segment.hasRoomFor(encoded.length)) {
+          segment = roll();
+          rolled = true;
+        }
+        segment.append(encoded);
+      } catch (IOException e) {
+        spansDropped.incrementAndGet();
+        log.warn("couldn't spool span to {}: {}", directory, e.getMessage());
+        return;
+      }
+      // After a roll, wake the drainer even if backing off, so it prepares the next spare
+      if (drainerWaiting || rolled) lock.notify();
+    }
+  }
+
+  /** Stops the drainer. Anything not yet sent remains on disk for the next start. */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    drainer.interrupt();
+    try {
+      drainer.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    maintain(); // in case the drainer stopped before forcing or deleting segments
+    synchronized (lock) {
+      for (Segment segment : segments) segment.buffer.force();
+    }
+    long dropped = spansDropped.get();
+    if (dropped > 0) log.warn("dropped {} spans since startup", dropped);
+  }
+
+  void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) throw new IOException("couldn't list spool directory " + directory);
+    Arrays.sort(files); // names are zero-padded sequence numbers
+    synchronized (lock) {
+      for (File file : files) {
+        String name = file.getName();
+        long sequence;
+        try {
+          sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          log.warn("ignoring {} as it isn't named like a spool segment", file);
+          continue;
+        }
+        Segment segment = Segment.recover(file, sequence);
+        if (segment == null) {
+          log.warn("deleting corrupt spool segment {}", file);
+          if (!file.delete()) throw new IOException("couldn't delete " + file);
+          continue;
+        }
+        segments.addLast(segment);
+        nextSequence = sequence + 1;
+      }
+    }
+  }
+
+  /**
+   * Starts the next segment, dropping the oldest if that would exceed the limit. The drainer
+   * forces the full segment and deletes the dropped one.
+   */
+  Segment roll() throws IOException { // guarded by lock
+    Segment current = segments.peekLast();
+    if (current != null) unforced.add(current);
+    while (segments.size() >= maxSegments) {
+      Segment oldest = segments.removeFirst();
+      int unsent = oldest.unsentSpans();
+      spansDropped.addAndGet(unsent);
+      retired.add(oldest);
+      log.warn("dropped {} unsent spans: spool is full at {} segments", unsent, maxSegments);
+    }
+    Segment result = spare;
+    spare = null;
+    if (result == null) { // the drainer hasn't prepared one, so we have to
+      long sequence = nextSequence++;
+      result = Segment.create(segmentFile(sequence), sequence, segmentBytes);
+    }
+    segments.addLast(result);
+    return result;
+  }
+
+  File segmentFile(long sequence) {
+    return new File(directory, String.format("%019d%s", sequence, SUFFIX));
+  }
+
+  /**
+   * Called by the drainer to do the file system work {@link #roll()} defers: forces full segments,
+   * deletes retired ones and creates the spare. The lock isn't held during any of these.
+   */
+  void maintain() {
+    List<Segment> toForce, toDelete;
+    long sequence = -1;
+    synchronized (lock) {
+      toForce = unforced.isEmpty() ? null : new ArrayList<>(unforced);
+      unforced.clear();
+      toDelete = retired.isEmpty() ? null : new ArrayList<>(retired);
+      retired.clear();
+      if (spare == null && !closed) sequence = nextSequence++;
+    }
+    if (toForce != null) {
+      for (Segment segment : toForce) segment.buffer.force();
+    }
+    if (toDelete != null) {
+      for (Segment segment : toDelete) segment.delete();
+    }
+    if (sequence == -1) return;
+
+    Segment next;
+    try {
+      next = Segment.create(segmentFile(sequence), sequence, segmentBytes);
+    } catch (IOException e) {
+      log.warn("couldn't create spool segment in {}: {}", directory, e.getMessage());
+      return;
+    }
+    synchronized (lock) {
+      Segment last = segments.peekLast();
+      // Unless reporting rolled to a segment of its own meanwhile, which must stay the newest
+      if (last == null || last.sequence < sequence) {
+        spare = next;
+        return;
+      }
+    }
+    next.delete();
+  }
+
+  void drain() {
+    List<byte[]> batch = new ArrayList<>();
+    long lastSendNanos = System.nanoTime(), backoffMillis = 0;
+    while (!closed) {
+      maintain();
+      Segment segment;
+      int limit;
+      boolean active;
+      synchronized (lock) {
+        segment = segments.peekFirst();
+        while (segment != null && segment != segments.peekLast() && segment.unsentBytes() == 0) {
+          retired.add(segments.removeFirst());
+          segment = segments.peekFirst();
+        }
+        if (segment == null || segment.unsentBytes() == 0) {
+          if (!await(messageTimeoutNanos)) return;
+          continue;
+        }
+        limit = segment.writePosition;
+        active = segment == segments.peekLast();
+      }
+
+      int position = read(segment, segment.readPosition, limit, batch);
+      if (batch.isEmpty()) { // the next span can never be sent, so skip past it
+        spansDropped.incrementAndGet();
+        log.warn("dropped a spooled span over the sender's limit of {} bytes", messageMaxBytes);
+        synchronized (lock) {
+          if (segments.peekFirst() == segment) segment.commitRead(position);
+        }
+        continue;
+      }
+      // Wait for a full message, unless the timeout has passed since the last one was sent.
+      long waitNanos = messageTimeoutNanos - (System.nanoTime() - lastSendNanos);
+      if (active && position == limit && waitNanos > 0) {
+        batch.clear();
+        synchronized (lock) {
+          if (!await(waitNanos)) return;
+        }
+        continue;
+      }
+
+      try {
+        sender.sendSpans(batch).execute();
+      } catch (Exception e) {
+        if (closed) return;
+        backoffMillis = Math.min(Math.max(backoffMillis * 2, 100), maxBackoffMillis);
+        log.debug("couldn't send {} spans, retrying in {}ms: {}", batch.size(), backoffMillis, e);
+        batch.clear();
+        if (!backoff(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis))) return;
+        continue;
+      }
+      backoffMillis = 0;
+      lastSendNanos = System.nanoTime();
+      batch.clear();
+      synchronized (lock) {
+        // The segment may have been dropped while we were sending, if the spool overflowed.
+        if (segments.peekFirst() == segment) segment.commitRead(position);
+      }
+    }
+  }
+
+  /** Returns false if interrupted, which means the reporter is closing. */
+  boolean await(long nanos) { // guarded by lock
+    drainerWaiting = true;
+    try {
+      TimeUnit.NANOSECONDS.timedWait(lock, nanos);
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    } finally {
+      drainerWaiting = false;
+    }
+  }
+
+  /**
+   * Waits until the deadline, except to keep a spare segment ready when reporting rolls. Returns
+   * false if interrupted, which means the reporter is closing.
+   */
+  boolean backoff(long deadlineNanos) {
+    while (true) {
+      maintain();
+      synchronized (lock) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) return true;
+        try { // not drainerWaiting, as new spans shouldn't cut the backoff short
+          TimeUnit.NANOSECONDS.timedWait(lock, remainingNanos);
+        } catch (InterruptedException e) {
+          return false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads spans into the batch until it is a full message. Returns the position after them.
+   *
+   * <p>If the first span alone is over {@link #messageMaxBytes}, the batch is left empty and the
+   * position after that span is returned. This happens when spans were spooled for a sender with a
+   * larger limit, before a restart.
+   */
+  int read(Segment segment, int position, int limit, List<byte[]> batch) {
+    ByteBuffer buffer = segment.buffer.duplicate(); // so we don't race on position
+    int spanBytes = 0;
+    while (position < limit) {
+      int length = buffer.getInt(position);
+      if (batch.isEmpty() && messageSize(encoding, 1, length) > messageMaxBytes) {
+        return position + 4 + length;
+      }
+      if (messageSize(encoding, batch.size() + 1, spanBytes + length) > messageMaxBytes) break;
+      byte[] encoded = new byte[length];
+      buffer.position(position + 4);
+      buffer.get(encoded);
+      batch.add(encoded);
+      spanBytes += length;
+      position += 4 + length;
+    }
+    return position;
+  }
+
+  static int messageSize(Encoding encoding, int spanCount, int spanBytes) {
+    switch (encoding) {
+      case JSON:
+        return spanBytes + spanCount + 1; // brackets and commas
+      case THRIFT:
+        return spanBytes + 5; // list header
+      default:
+        return spanBytes; // proto3 spans are already repeated fields
+    }
+  }
+
+  static BytesEncoder<Span> encoder(Encoding encoding) {
+    switch (encoding) {
+      case JSON:
+        return SpanBytesEncoder.JSON_V2;
+      case THRIFT:
+        return SpanBytesEncoder.THRIFT;
+      case PROTO3:
+        return SpanBytesEncoder.PROTO3;
+      default:
+        throw new UnsupportedOperationException("unsupported encoding " + encoding);
+    }
+  }
+
+  static final class Segment {
+    static final int MAGIC = 0x5a4b5350;
+    static final int HEADER_BYTES = 8; // magic, then the read position
+
+    final long sequence;
+    final File file;
+    final MappedByteBuffer buffer;
+    int writePosition; // guarded by the reporter's lock
+    int readPosition; // only written by the drainer, under the reporter's lock
+
+    Segment(long sequence, File file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    static Segment create(File file, long sequence, int size) throws IOException {
+      Segment result = new Segment(sequence, file, map(file, size));
+      result.buffer.putInt(0, MAGIC);
+      result.writePosition = HEADER_BYTES;
+      result.commitRead(HEADER_BYTES);
+      return result;
+    }
+
+    /** Returns null if the file isn't a segment. */
+    static Segment recover(File file, long sequence) throws IOException {
+      long size = file.length();
+      if (size < HEADER_BYTES || size > Integer.MAX_VALUE) return null;
+      Segment result = new Segment(sequence, file, map(file, (int) size));
+      if (result.buffer.getInt(0) != MAGIC) return null;
+      int position = HEADER_BYTES;
+      while (position + 4 <= size) {
+        int length = result.buffer.getInt(position);
+        if (length <= 0 || position + 4 + length > size) break;
+        position += 4 + length;
+      }
+      result.writePosition = position;
+      int readPosition = result.buffer.getInt(4);
+      if (readPosition < HEADER_BYTES || readPosition > position) readPosition = HEADER_BYTES;
+      result.readPosition = readPosition;
+      return result;
+    }
+
+    static MappedByteBuffer map(File file, int size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try { // the mapping stays valid after the file is closed
+        if (raf.length() < size) raf.setLength(size);
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+      }
+    }
+
+    boolean hasRoomFor(int length) {
+      return writePosition + 4 + length <= buffer.capacity();
+    }
+
+    void append(byte[] encoded) {
+      ByteBuffer buffer = this.buffer.duplicate();
+      buffer.position(writePosition + 4);
+      buffer.put(encoded);
+      this.buffer.putInt(writePosition, encoded.length);
+      writePosition += 4 + encoded.length;
+    }
+
+    void commitRead(int position) {
+      readPosition = position;
+      buffer.putInt(4, position);
+    }
+
+    int unsentBytes() {
+      return writePosition - readPosition;
+    }
+
+    int unsentSpans() {
+      int count = 0;
+      for (int position = readPosition; position < writePosition; count++) {
+        position += 4 + buffer.getInt(position);
+      }
+      return count;
+    }
+
+    void delete() {
+      // On Windows, this fails until the mapping is garbage collected.
+      if (!file.delete()) log.warn("couldn't delete spool segment {}", file);
+    }
+  }
+}
@@ -1,14 +1,25 @@
 package brave.webmvc;
 
+import brave.SpanCustomizer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFutureCallback;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 @Slf4j
 @EnableWebMvc
@@ -17,11 +28,103 @@ import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 @CrossOrigin // So that javascript can be hosted elsewhere
 public class Frontend {
 
+  @Value("${backend.url:http://localhost:9000/api}") String backendUrl;
+
   @Autowired RestTemplate restTemplate;
+  @Autowired AsyncRestTemplate asyncRestTemplate;
+  @Autowired TinyLfuCache<String, String> backendCache;
+  @Autowired SingleFlight<String, BackendResponse> backendCalls;
+  @Autowired(required = false) Tracing tracing;
+
+  /**
+   * Responses are cached per user until the backend's {@code Date} plus {@code max-age}, as the
+   * backend would answer them the same until then. {@code frontend.cache.ttl} caps that. Cache hits
+   * are tagged on the server span.
+   *
+   * <p>On a miss, concurrent requests for the same user share one backend call. Requests that
+   * didn't make the call are tagged with the trace that did.
+   */
+  @RequestMapping("/") public String callBackend() throws Exception {
+    final TraceContext context = tracing != null ? tracing.currentTraceContext().get() : null;
+    // Only the user name is propagated to the backend, so that's all it can vary on
+    String userName = context != null ? TracingConfiguration.USER_NAME.getValue(context) : null;
+    final String key = userName != null ? backendUrl + "#" + userName : backendUrl;
+
+    String cached = backendCache.get(key);
+    if (cached != null) {
+      if (context != null) tracing.tracer().currentSpanCustomizer().tag("frontend.cache", "hit");
+      return cached;
+    }
+
+    SingleFlight.Result<BackendResponse> result =
+        backendCalls.execute(key, new Callable<BackendResponse>() {
+          @Override public BackendResponse call() {
+            ResponseEntity<String> response = restTemplate.getForEntity(backendUrl, String.class);
+            String body = response.getBody();
+            backendCache.put(key, body,
+                freshMillis(response.getHeaders(), System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+            return new BackendResponse(body, context != null ? context.traceIdString() : null);
+          }
+        });
+    if (result.shared && context != null) {
+      SpanCustomizer span = tracing.tracer().currentSpanCustomizer();
+      span.tag("frontend.coalesced", "true");
+      String leaderTraceId = result.value.traceId;
+      if (leaderTraceId != null) span.tag("frontend.coalesced.traceId", leaderTraceId);
+    }
+    log.info("result={};", result.value.body);
+    return result.value.body;
+  }
+
+  /**
+   * Returns how much longer the response is fresh: its {@code Date} plus {@code max-age}, which is
+   * the backend's next second. Without those headers, it is assumed fresh until the next second.
+   */
+  static long freshMillis(HttpHeaders headers, long now) {
+    long date = headers.getDate();
+    long maxAge = maxAgeSeconds(headers.getCacheControl());
+    if (date == -1L || maxAge == -1L) return 1000L - now % 1000L;
+    return date + maxAge * 1000L - now;
+  }
+
+  /** Returns the {@code max-age} directive in seconds, or -1 if absent or malformed. */
+  static long maxAgeSeconds(String cacheControl) {
+    if (cacheControl == null) return -1L;
+    int start = cacheControl.indexOf("max-age=");
+    if (start == -1) return -1L;
+    start += "max-age=".length();
+    int end = start;
+    while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) end++;
+    if (end == start || end - start > 9) return -1L;
+    return Long.parseLong(cacheControl.substring(start, end));
+  }
+
+  static final class BackendResponse {
+    final String body;
+    /** The trace that includes the backend call, if it was traced */
+    final String traceId;
+
+    BackendResponse(String body, String traceId) {
+      this.body = body;
+      this.traceId = traceId;
+    }
+  }
+
+  /** Same as {@link #callBackend()}, except the container thread is released while waiting. */
+  @RequestMapping("/async") public DeferredResult<String> callBackendAsync() {
+    final DeferredResult<String> result = new DeferredResult<>();
+    asyncRestTemplate.getForEntity(backendUrl, String.class)
+        .addCallback(new ListenableFutureCallback<ResponseEntity<String>>() {
+          @Override public void onSuccess(ResponseEntity<String> response) {
+            log.info("result={};", response.getBody());
+            result.setResult(response.getBody());
+          }
 
-  @RequestMapping("/") public String callBackend() {
-    String result = restTemplate.getForObject("http://localhost:9000/api", String.class);
-    log.info("restTemplate={};result={};",restTemplate,result);
+          @Override public void onFailure(Throwable ex) {
+            result.setErrorResult(ex);
+          }
+        });
     return result;
   }
 }
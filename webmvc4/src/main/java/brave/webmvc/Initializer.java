@@ -3,6 +3,8 @@ package brave.webmvc;
 import brave.spring.webmvc.DelegatingTracingFilter;
 import javax.servlet.Filter;
 import org.springframework.web.SpringServletContainerInitializer;
+import org.springframework.web.context.ConfigurableWebApplicationContext;
+import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.servlet.support.AbstractAnnotationConfigDispatcherServletInitializer;
 import org.springframework.web.servlet.support.MyAbstractAnnotationConfigDispatcherServletInitializer;
 
@@ -23,6 +25,19 @@ public class Initializer extends MyAbstractAnnotationConfigDispatcherServletInit
   }
 
   @Override protected Class<?>[] getServletConfigClasses() {
-    return new Class[] {Frontend.class, Backend.class};
+    return new Class[] {Frontend.class, Backend.class, MetricsEndpoint.class};
+  }
+
+  /** Logs how long each context takes to start, as the container waits for both */
+  @Override protected WebApplicationContext createRootApplicationContext() {
+    WebApplicationContext result = super.createRootApplicationContext();
+    StartupTimer.install((ConfigurableWebApplicationContext) result, "root");
+    return result;
+  }
+
+  @Override protected WebApplicationContext createServletApplicationContext() {
+    WebApplicationContext result = super.createServletApplicationContext();
+    StartupTimer.install((ConfigurableWebApplicationContext) result, "servlet");
+    return result;
   }
 }
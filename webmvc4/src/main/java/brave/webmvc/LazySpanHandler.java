@@ -0,0 +1,39 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import org.springframework.beans.factory.ObjectFactory;
+
+/**
+ * Creates another handler, such as {@code AsyncZipkinSpanHandler}, when the first span finishes
+ * instead of at startup. This defers connecting to Zipkin and starting the reporter thread until
+ * there is something to report, at the cost of doing so on the first request's thread.
+ */
+final class LazySpanHandler extends SpanHandler {
+  final ObjectFactory<SpanHandler> factory;
+  volatile SpanHandler delegate;
+
+  LazySpanHandler(ObjectFactory<SpanHandler> factory) {
+    if (factory == null) throw new NullPointerException("factory == null");
+    this.factory = factory;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    return delegate().end(context, span, cause);
+  }
+
+  SpanHandler delegate() {
+    SpanHandler result = delegate;
+    if (result != null) return result;
+    synchronized (this) {
+      if (delegate == null) delegate = factory.getObject();
+      return delegate;
+    }
+  }
+
+  @Override public String toString() {
+    SpanHandler result = delegate;
+    return "LazySpanHandler{" + (result != null ? result : "uninitialized") + "}";
+  }
+}
@@ -0,0 +1,31 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+/** Serves the span metrics to Prometheus when {@code zipkin.metrics.enabled} */
+@Configuration
+@EnableWebMvc
+@RestController
+public class MetricsEndpoint {
+  @Value("${zipkin.metrics.enabled:false}") boolean enabled;
+  // Only resolved when enabled, as the handler is lazy
+  @Autowired ObjectFactory<SpanMetricsHandler> spanMetricsHandler;
+
+  @RequestMapping("/metrics")
+  public void metrics(HttpServletResponse response) throws IOException {
+    if (!enabled) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    spanMetricsHandler.getObject().writeTo(response.getWriter());
+  }
+}
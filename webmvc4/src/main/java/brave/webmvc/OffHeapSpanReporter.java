@@ -0,0 +1,342 @@
+package brave.webmvc;
+
+import static brave.webmvc.DiskSpoolReporter.messageSize;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import zipkin2.Span;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+
+/**
+ * Reports spans by encoding them into direct byte buffers as they finish, which a background
+ * thread drains to the {@link Sender}.
+ *
+ * <p>{@code AsyncReporter} queues span objects until they are sent, so when Zipkin slows down the
+ * backlog is promoted to the old generation and scanned by every collection. Here, the backlog is
+ * encoded bytes outside the heap. Buffers are fixed-size chunks from a pool, allocated as needed up
+ * to {@link Builder#maxBytes(long)} and reused once drained, so they aren't allocated per span or
+ * released to the garbage collector. When all chunks are full, new spans are dropped.
+ *
+ * <p>Like {@link DiskSpoolReporter}, chunks hold length-prefixed spans, and the drainer retries a
+ * message with backoff until the sender accepts it. {@link Sender} takes a list of byte arrays, so
+ * only the spans of the message being sent are copied back onto the heap. A message only holds
+ * spans from one chunk.
+ */
+@Slf4j
+@ManagedResource(objectName = "brave.webmvc:type=OffHeapSpanReporter")
+public final class OffHeapSpanReporter implements Reporter<Span>, Closeable {
+  public static Builder newBuilder(Sender sender) {
+    return new Builder(sender);
+  }
+
+  public static final class Builder {
+    final Sender sender;
+    int chunkBytes = 1024 * 1024;
+    long maxBytes = 64L * 1024 * 1024;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    long maxBackoffMillis = TimeUnit.SECONDS.toMillis(30);
+
+    Builder(Sender sender) {
+      if (sender == null) throw new NullPointerException("sender == null");
+      this.sender = sender;
+    }
+
+    /** Size of each direct buffer. Spans larger than this are dropped. Default 1MiB. */
+    public Builder chunkBytes(int chunkBytes) {
+      if (chunkBytes < 1024) throw new IllegalArgumentException("chunkBytes < 1024");
+      this.chunkBytes = chunkBytes;
+      return this;
+    }
+
+    /**
+     * Most direct memory used, rounded down to whole chunks. The JVM's {@code
+     * -XX:MaxDirectMemorySize} must leave room for this. Default 64MiB.
+     */
+    public Builder maxBytes(long maxBytes) {
+      if (maxBytes < 1024) throw new IllegalArgumentException("maxBytes < 1024");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /** How long to wait for a full message before sending what's buffered. Default 1 second. */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+      this.messageTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /** Longest delay between attempts when the sender fails. Default 30 seconds. */
+    public Builder maxBackoff(long backoff, TimeUnit unit) {
+      if (backoff <= 0) throw new IllegalArgumentException("backoff <= 0");
+      this.maxBackoffMillis = unit.toMillis(backoff);
+      return this;
+    }
+
+    /** Starts the drainer. */
+    public OffHeapSpanReporter build() {
+      if (maxBytes < chunkBytes) throw new IllegalArgumentException("maxBytes < chunkBytes");
+      return new OffHeapSpanReporter(this);
+    }
+  }
+
+  final Sender sender;
+  final Encoding encoding;
+  final BytesEncoder<Span> encoder;
+  final int messageMaxBytes, chunkBytes, maxChunks;
+  final long messageTimeoutNanos, maxBackoffMillis;
+  final Thread drainer;
+  final AtomicLong spansDropped = new AtomicLong(), messagesSent = new AtomicLong();
+
+  final Object lock = new Object();
+  final Deque<Chunk> chunks = new ArrayDeque<>(); // guarded by lock
+  final Deque<Chunk> free = new ArrayDeque<>(); // guarded by lock
+  int allocatedChunks; // guarded by lock
+  boolean drainerWaiting; // guarded by lock
+  volatile boolean closed;
+
+  OffHeapSpanReporter(Builder builder) {
+    sender = builder.sender;
+    encoding = sender.encoding();
+    encoder = DiskSpoolReporter.encoder(encoding);
+    messageMaxBytes = sender.messageMaxBytes();
+    chunkBytes = builder.chunkBytes;
+    maxChunks = (int) Math.min(Integer.MAX_VALUE, builder.maxBytes / chunkBytes);
+    messageTimeoutNanos = builder.messageTimeoutNanos;
+    maxBackoffMillis = builder.maxBackoffMillis;
+    drainer = new Thread(new Runnable() {
+      @Override public void run() {
+        drain();
+      }
+    }, "OffHeapSpanReporter{" + sender + "}");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /** Appends the span to the current chunk, moving to a free one when full. */
+  @Override public void report(Span span) {
+    if (span == null) throw new NullPointerException("span == null");
+    byte[] encoded = encoder.encode(span); // short-lived: only the copy below is kept
+    if (closed || messageSize(encoding, 1, encoded.length) > messageMaxBytes
+        || 4 + encoded.length > chunkBytes) {
+      spansDropped.incrementAndGet();
+      return;
+    }
+    synchronized (lock) {
+      Chunk chunk = chunks.peekLast();
+      if (chunk == null || !chunk.hasRoomFor(encoded.length)) chunk = nextChunk();
+      if (chunk == null) {
+        spansDropped.incrementAndGet();
+        return;
+      }
+      chunk.append(encoded);
+      if (drainerWaiting) lock.notify();
+    }
+  }
+
+  /** Returns a free chunk, allocating one if under the limit, or null if all are in use. */
+  Chunk nextChunk() { // guarded by lock
+    Chunk result = free.pollFirst();
+    if (result == null) {
+      if (allocatedChunks == maxChunks) return null;
+      result = new Chunk(ByteBuffer.allocateDirect(chunkBytes));
+      allocatedChunks++;
+    }
+    chunks.addLast(result);
+    return result;
+  }
+
+  /** Stops the drainer after it sends what it can within a second. Unsent spans are dropped. */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    synchronized (lock) {
+      lock.notify(); // in case the drainer is waiting for a full message
+    }
+    try {
+      drainer.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    drainer.interrupt();
+    long dropped = spansDropped.get() + unsentSpans();
+    if (dropped > 0) log.warn("dropped {} spans since startup", dropped);
+  }
+
+  @ManagedAttribute(description = "Bytes of encoded spans not yet sent")
+  public long getBufferedBytes() {
+    long result = 0;
+    synchronized (lock) {
+      for (Chunk chunk : chunks) result += chunk.unsentBytes();
+    }
+    return result;
+  }
+
+  @ManagedAttribute(description = "Direct memory held by buffers, in use or free")
+  public long getAllocatedBytes() {
+    synchronized (lock) {
+      return (long) allocatedChunks * chunkBytes;
+    }
+  }
+
+  @ManagedAttribute(description = "Spans dropped as all buffers were full, or too large")
+  public long getSpansDroppedCount() {
+    return spansDropped.get();
+  }
+
+  @ManagedAttribute(description = "Messages the sender accepted")
+  public long getMessagesSentCount() {
+    return messagesSent.get();
+  }
+
+  int unsentSpans() {
+    int result = 0;
+    synchronized (lock) {
+      for (Chunk chunk : chunks) result += chunk.unsentSpans();
+    }
+    return result;
+  }
+
+  void drain() {
+    List<byte[]> batch = new ArrayList<>();
+    long lastSendNanos = System.nanoTime(), backoffMillis = 0;
+    // On close, keep sending until empty or the first failure
+    while (!closed || backoffMillis == 0) {
+      Chunk chunk;
+      int limit;
+      boolean active;
+      synchronized (lock) {
+        chunk = chunks.peekFirst();
+        while (chunk != null && chunk != chunks.peekLast() && chunk.unsentBytes() == 0) {
+          free.addLast(chunks.removeFirst().clear());
+          chunk = chunks.peekFirst();
+        }
+        if (chunk == null || chunk.unsentBytes() == 0) {
+          if (closed || !await(messageTimeoutNanos)) return;
+          continue;
+        }
+        limit = chunk.writePosition;
+        active = chunk == chunks.peekLast();
+      }
+
+      int position = read(chunk, chunk.readPosition, limit, batch);
+      // Wait for a full message, unless the timeout has passed since the last one was sent.
+      long waitNanos = messageTimeoutNanos - (System.nanoTime() - lastSendNanos);
+      if (!closed && active && position == limit && waitNanos > 0) {
+        batch.clear();
+        synchronized (lock) {
+          if (!await(waitNanos)) return;
+        }
+        continue;
+      }
+
+      try {
+        sender.sendSpans(batch).execute();
+      } catch (Exception e) {
+        if (closed) return;
+        backoffMillis = Math.min(Math.max(backoffMillis * 2, 100), maxBackoffMillis);
+        log.debug("couldn't send {} spans, retrying in {}ms: {}", batch.size(), backoffMillis, e);
+        batch.clear();
+        try {
+          Thread.sleep(backoffMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        continue;
+      }
+      backoffMillis = 0;
+      lastSendNanos = System.nanoTime();
+      messagesSent.incrementAndGet();
+      batch.clear();
+      synchronized (lock) {
+        chunk.readPosition = position;
+        // Reuse the last chunk from the start rather than moving to another
+        if (chunk == chunks.peekLast() && chunk.unsentBytes() == 0) chunk.clear();
+      }
+    }
+  }
+
+  /** Returns false if interrupted, which means the reporter is closing. */
+  boolean await(long nanos) { // guarded by lock
+    drainerWaiting = true;
+    try {
+      TimeUnit.NANOSECONDS.timedWait(lock, nanos);
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    } finally {
+      drainerWaiting = false;
+    }
+  }
+
+  /** Reads spans into the batch until it is a full message. Returns the position after them. */
+  int read(Chunk chunk, int position, int limit, List<byte[]> batch) {
+    ByteBuffer buffer = chunk.buffer.duplicate(); // so we don't race on position
+    int spanBytes = 0;
+    while (position < limit) {
+      int length = buffer.getInt(position);
+      if (messageSize(encoding, batch.size() + 1, spanBytes + length) > messageMaxBytes) break;
+      byte[] encoded = new byte[length];
+      buffer.position(position + 4);
+      buffer.get(encoded);
+      batch.add(encoded);
+      spanBytes += length;
+      position += 4 + length;
+    }
+    return position;
+  }
+
+  @Override public String toString() {
+    return "OffHeapSpanReporter{" + sender + "}";
+  }
+
+  static final class Chunk {
+    final ByteBuffer buffer;
+    int writePosition; // guarded by the reporter's lock
+    int readPosition; // only written by the drainer, under the reporter's lock
+
+    Chunk(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    boolean hasRoomFor(int length) {
+      return writePosition + 4 + length <= buffer.capacity();
+    }
+
+    void append(byte[] encoded) {
+      ByteBuffer buffer = this.buffer.duplicate();
+      buffer.position(writePosition + 4);
+      buffer.put(encoded);
+      this.buffer.putInt(writePosition, encoded.length);
+      writePosition += 4 + encoded.length;
+    }
+
+    int unsentBytes() {
+      return writePosition - readPosition;
+    }
+
+    int unsentSpans() {
+      int count = 0;
+      for (int position = readPosition; position < writePosition; count++) {
+        position += 4 + buffer.getInt(position);
+      }
+      return count;
+    }
+
+    Chunk clear() {
+      writePosition = readPosition = 0;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,331 @@
+package brave.webmvc;
+
+import brave.sampler.Sampler;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.ReporterMetrics;
+import zipkin2.reporter.Sender;
+
+/**
+ * Lowers the sample rate while the Zipkin reporter can't keep up, so that requests stop recording
+ * spans the reporter would drop anyway.
+ *
+ * <p>Pressure is the larger of how full the reporter queue is, and how long messages take to send
+ * relative to {@link Builder#maxSendLatency(long, TimeUnit)}, averaged over recent messages. A span
+ * dropped as the queue is full counts as full pressure. This receives the queue size as the
+ * reporter's {@link ReporterMetrics}, and send times from {@link #sender(Sender)}.
+ *
+ * <p>At most once per {@link Builder#adjustInterval(long, TimeUnit) interval}, the rate is halved
+ * if pressure is at least the high watermark, or raised by a tenth if at most the low watermark.
+ * Between them it holds, so the rate doesn't flap around one threshold. Samplers wrapped by {@link
+ * #throttle(Sampler)} keep that fraction of the traces they would sample, chosen by trace ID.
+ */
+@Slf4j
+@ManagedResource(objectName = "brave.webmvc:type=ReporterBackpressure")
+public final class ReporterBackpressure implements ReporterMetrics {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int queuedMaxSpans = 10000;
+    long maxSendLatencyNanos = TimeUnit.SECONDS.toNanos(1);
+    float highWatermark = 0.8f, lowWatermark = 0.5f, minRate = 0.01f;
+    long adjustIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    Builder() {
+    }
+
+    /** The reporter's queue limit, which occupancy is measured against. Default 10000. */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      if (queuedMaxSpans < 1) throw new IllegalArgumentException("queuedMaxSpans < 1");
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /** Messages taking this long to send count as full pressure. Default 1s. */
+    public Builder maxSendLatency(long maxSendLatency, TimeUnit unit) {
+      if (maxSendLatency <= 0) throw new IllegalArgumentException("maxSendLatency <= 0");
+      this.maxSendLatencyNanos = unit.toNanos(maxSendLatency);
+      return this;
+    }
+
+    /** Pressure at or above which the rate is halved. Default 0.8. */
+    public Builder highWatermark(float highWatermark) {
+      if (highWatermark <= 0f || highWatermark > 1f) {
+        throw new IllegalArgumentException("highWatermark must be in (0, 1]");
+      }
+      this.highWatermark = highWatermark;
+      return this;
+    }
+
+    /** Pressure at or below which the rate is raised. Default 0.5. */
+    public Builder lowWatermark(float lowWatermark) {
+      if (lowWatermark < 0f || lowWatermark >= 1f) {
+        throw new IllegalArgumentException("lowWatermark must be in [0, 1)");
+      }
+      this.lowWatermark = lowWatermark;
+      return this;
+    }
+
+    /** The least fraction of traces kept, however high pressure is. Default 0.01. */
+    public Builder minRate(float minRate) {
+      if (minRate <= 0f || minRate > 1f) {
+        throw new IllegalArgumentException("minRate must be in (0, 1]");
+      }
+      this.minRate = minRate;
+      return this;
+    }
+
+    /** Least time between changes to the rate. Default 1s. */
+    public Builder adjustInterval(long adjustInterval, TimeUnit unit) {
+      if (adjustInterval <= 0) throw new IllegalArgumentException("adjustInterval <= 0");
+      this.adjustIntervalNanos = unit.toNanos(adjustInterval);
+      return this;
+    }
+
+    public ReporterBackpressure build() {
+      if (lowWatermark >= highWatermark) {
+        throw new IllegalArgumentException("lowWatermark >= highWatermark");
+      }
+      return new ReporterBackpressure(this);
+    }
+  }
+
+  static final float INCREASE = 0.1f;
+  static final double LATENCY_WEIGHT = 0.3; // of the latest message in the average
+
+  final int queuedMaxSpans;
+  final long maxSendLatencyNanos, adjustIntervalNanos;
+  final float highWatermark, lowWatermark, minRate;
+  final AtomicLong throttled = new AtomicLong(), spansDropped = new AtomicLong();
+  volatile int queuedSpans;
+  volatile double sendLatencyNanos; // only written by the reporter thread
+  volatile long sendingSinceNanos; // 0 when no message is being sent
+  volatile float rate = 1f;
+  /** Traces with an ID below this, ignoring the sign bit, are kept */
+  volatile long threshold = Long.MAX_VALUE;
+  volatile long lastAdjustNanos = System.nanoTime();
+
+  ReporterBackpressure(Builder builder) {
+    queuedMaxSpans = builder.queuedMaxSpans;
+    maxSendLatencyNanos = builder.maxSendLatencyNanos;
+    adjustIntervalNanos = builder.adjustIntervalNanos;
+    highWatermark = builder.highWatermark;
+    lowWatermark = builder.lowWatermark;
+    minRate = builder.minRate;
+  }
+
+  /** Returns a sampler that only keeps the current rate of what the delegate would sample. */
+  public Sampler throttle(final Sampler delegate) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    return new Sampler() {
+      @Override public boolean isSampled(long traceId) {
+        // Checked first, so that throttled traces don't use up a rate limiter's budget
+        if (rate < 1f && (traceId & Long.MAX_VALUE) >= threshold) {
+          throttled.incrementAndGet();
+          return false;
+        }
+        return delegate.isSampled(traceId);
+      }
+
+      @Override public String toString() {
+        return "Throttled{" + delegate + "}";
+      }
+    };
+  }
+
+  /** Returns a sender that reports how long each message takes to send. */
+  public Sender sender(Sender delegate) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    return new TimedSender(delegate);
+  }
+
+  /** Current pressure: 0 when idle, and 1 or more when spans are being dropped. */
+  @ManagedAttribute(description = "Larger of reporter queue occupancy and send latency over max")
+  public double getPressure() {
+    double queue = (double) queuedSpans / queuedMaxSpans;
+    long sendingSince = sendingSinceNanos;
+    double latency = sendLatencyNanos;
+    // A send that hangs wouldn't otherwise count until it returns
+    if (sendingSince != 0L) latency = Math.max(latency, System.nanoTime() - sendingSince);
+    return Math.max(queue, latency / maxSendLatencyNanos);
+  }
+
+  @ManagedAttribute(description = "Fraction of traces the throttled samplers keep")
+  public float getRate() {
+    return rate;
+  }
+
+  @ManagedAttribute(description = "Traces not sampled due to backpressure")
+  public long getThrottledCount() {
+    return throttled.get();
+  }
+
+  @ManagedAttribute(description = "Spans the reporter dropped as its queue was full")
+  public long getSpansDroppedCount() {
+    return spansDropped.get();
+  }
+
+  @ManagedAttribute(description = "Average milliseconds to send a message to Zipkin")
+  public double getSendLatencyMillis() {
+    return sendLatencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /** Called by the reporter after each time it drains the queue, at least once a second. */
+  @Override public void updateQueuedSpans(int update) {
+    queuedSpans = update;
+    adjust(getPressure());
+  }
+
+  /** Called on request threads when the queue is full */
+  @Override public void incrementSpansDropped(int quantity) {
+    spansDropped.addAndGet(quantity);
+    adjust(1.0);
+  }
+
+  void adjust(double pressure) {
+    long now = System.nanoTime();
+    if (now - lastAdjustNanos < adjustIntervalNanos) return;
+    synchronized (this) {
+      if (now - lastAdjustNanos < adjustIntervalNanos) return;
+      lastAdjustNanos = now;
+      float oldRate = rate, newRate = oldRate;
+      if (pressure >= highWatermark) {
+        newRate = Math.max(minRate, oldRate / 2);
+      } else if (pressure <= lowWatermark) {
+        newRate = Math.min(1f, oldRate + INCREASE);
+      }
+      if (newRate == oldRate) return;
+      threshold = newRate >= 1f ? Long.MAX_VALUE : (long) (newRate * (double) Long.MAX_VALUE);
+      rate = newRate;
+      if (newRate < oldRate) {
+        log.warn("Zipkin reporter pressure is {}. Sampling {} of traces", pressure, newRate);
+      } else {
+        log.info("Zipkin reporter pressure is {}. Sampling {} of traces", pressure, newRate);
+      }
+    }
+  }
+
+  void sent(long startNanos) {
+    long latency = System.nanoTime() - startNanos;
+    sendingSinceNanos = 0L;
+    sendLatencyNanos += LATENCY_WEIGHT * (latency - sendLatencyNanos);
+  }
+
+  @Override public void incrementMessages() {
+  }
+
+  @Override public void incrementMessagesDropped(Throwable cause) {
+  }
+
+  @Override public void incrementSpans(int quantity) {
+  }
+
+  @Override public void incrementSpanBytes(int quantity) {
+  }
+
+  @Override public void incrementMessageBytes(int quantity) {
+  }
+
+  @Override public void updateQueuedBytes(int update) {
+  }
+
+  @Override public String toString() {
+    return "ReporterBackpressure{rate=" + rate + "}";
+  }
+
+  final class TimedSender extends Sender {
+    final Sender delegate;
+
+    TimedSender(Sender delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public Encoding encoding() {
+      return delegate.encoding();
+    }
+
+    @Override public int messageMaxBytes() {
+      return delegate.messageMaxBytes();
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return delegate.messageSizeInBytes(encodedSpans);
+    }
+
+    @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+      return delegate.messageSizeInBytes(encodedSizeInBytes);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      return new TimedCall(delegate.sendSpans(encodedSpans));
+    }
+
+    @Override public CheckResult check() {
+      return delegate.check();
+    }
+
+    @Override public void close() throws IOException {
+      delegate.close();
+    }
+
+    @Override public String toString() {
+      return delegate.toString();
+    }
+  }
+
+  /** Times a message, whether it succeeds or fails. */
+  final class TimedCall extends Call.Base<Void> {
+    final Call<Void> call;
+
+    TimedCall(Call<Void> call) {
+      this.call = call;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      long start = sendingSinceNanos = System.nanoTime();
+      try {
+        return call.execute();
+      } finally {
+        sent(start);
+      }
+    }
+
+    @Override protected void doEnqueue(final Callback<Void> callback) {
+      final long start = sendingSinceNanos = System.nanoTime();
+      call.enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          sent(start);
+          callback.onSuccess(value);
+        }
+
+        @Override public void onError(Throwable t) {
+          sent(start);
+          callback.onError(t);
+        }
+      });
+    }
+
+    @Override protected void doCancel() {
+      call.cancel();
+    }
+
+    @Override protected boolean doIsCanceled() {
+      return call.isCanceled();
+    }
+
+    @Override public Call<Void> clone() {
+      return new TimedCall(call.clone());
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Hands finished spans to another handler, such as {@code AsyncZipkinSpanHandler}, through a
+ * bounded lock-free queue drained by a single thread.
+ *
+ * <p>{@code AsyncZipkinSpanHandler} sizes and enqueues each span under a lock, which request
+ * threads contend on when many finish at once. Here, a request thread claims a pre-allocated slot
+ * with one compare-and-set, and only the consumer thread calls the delegate. When the queue is
+ * full, a span is dropped according to {@link Overflow} instead of blocking the request.
+ *
+ * <p>The queue is Dmitry Vyukov's bounded array queue: each slot has a sequence number that says
+ * whether it is free to write or ready to read in the current lap around the array. Publishing a
+ * slot is a volatile write of its sequence, so the span written before it is visible to the
+ * consumer.
+ */
+@Slf4j
+@ManagedResource(objectName = "brave.webmvc:type=RingBufferSpanHandler")
+public final class RingBufferSpanHandler extends SpanHandler implements Closeable {
+  /** What the consumer thread does when the queue is empty */
+  public enum WaitStrategy {
+    /** Polls continuously. Lowest latency, but uses a whole core. */
+    BUSY_SPIN,
+    /** Yields the thread between polls. */
+    YIELD,
+    /** Sleeps between polls, backing off to a millisecond. */
+    SLEEP,
+    /** Parks until a producer wakes it. Least CPU, but wakeups cost the producer an unpark. */
+    BLOCK
+  }
+
+  /** What to do with a finished span when the queue is full */
+  public enum Overflow {
+    /** Drops the span being finished. */
+    DROP_NEWEST,
+    /** Drops the oldest queued span to make room. */
+    DROP_OLDEST
+  }
+
+  public static Builder newBuilder(SpanHandler delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    final SpanHandler delegate;
+    int capacity = 8192;
+    WaitStrategy waitStrategy = WaitStrategy.SLEEP;
+    Overflow overflow = Overflow.DROP_NEWEST;
+
+    Builder(SpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /** Slots in the queue, rounded up to a power of two. Default 8192. */
+    public Builder capacity(int capacity) {
+      if (capacity < 2) throw new IllegalArgumentException("capacity < 2");
+      if (capacity > 1 << 30) throw new IllegalArgumentException("capacity > 2^30");
+      this.capacity = capacity;
+      return this;
+    }
+
+    /** Default {@link WaitStrategy#SLEEP} */
+    public Builder waitStrategy(WaitStrategy waitStrategy) {
+      if (waitStrategy == null) throw new NullPointerException("waitStrategy == null");
+      this.waitStrategy = waitStrategy;
+      return this;
+    }
+
+    /** Default {@link Overflow#DROP_NEWEST} */
+    public Builder overflow(Overflow overflow) {
+      if (overflow == null) throw new NullPointerException("overflow == null");
+      this.overflow = overflow;
+      return this;
+    }
+
+    /** Starts the consumer thread. */
+    public RingBufferSpanHandler build() {
+      return new RingBufferSpanHandler(this);
+    }
+  }
+
+  final SpanHandler delegate;
+  final WaitStrategy waitStrategy;
+  final Overflow overflow;
+  final int mask;
+  final AtomicLongArray sequences;
+  // Slots are plain arrays, as sequences guard access to them
+  final TraceContext[] contexts;
+  final MutableSpan[] spans;
+  final Cause[] causes;
+  final AtomicLong tail = new AtomicLong(), head = new AtomicLong();
+  final AtomicLong enqueued = new AtomicLong(), dropped = new AtomicLong();
+  /** Bucket i counts enqueue times from 2^(i-1) up to 2^i nanoseconds */
+  final AtomicLongArray enqueueNanos = new AtomicLongArray(64);
+  final AtomicLong enqueueNanosMax = new AtomicLong();
+  final Thread consumer;
+  volatile boolean consumerParked, closed;
+
+  RingBufferSpanHandler(Builder builder) {
+    delegate = builder.delegate;
+    waitStrategy = builder.waitStrategy;
+    overflow = builder.overflow;
+    int capacity = Integer.highestOneBit(builder.capacity - 1) << 1;
+    mask = capacity - 1;
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) sequences.set(i, i);
+    contexts = new TraceContext[capacity];
+    spans = new MutableSpan[capacity];
+    causes = new Cause[capacity];
+    consumer = new Thread(new Runnable() {
+      @Override public void run() {
+        consume();
+      }
+    }, "RingBufferSpanHandler{" + delegate + "}");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (cause == Cause.ABANDONED || closed) return true;
+    long start = System.nanoTime();
+    if (!offer(context, span, cause)) {
+      dropped.incrementAndGet();
+      return true;
+    }
+    recordEnqueueNanos(System.nanoTime() - start);
+    enqueued.incrementAndGet();
+    if (consumerParked) LockSupport.unpark(consumer);
+    return true;
+  }
+
+  boolean offer(TraceContext context, MutableSpan span, Cause cause) {
+    while (true) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          contexts[index] = context;
+          spans[index] = span;
+          causes[index] = cause;
+          sequences.set(index, position + 1); // ready to read
+          return true;
+        }
+      } else if (difference < 0) { // full: the slot is still unread from the last lap
+        if (overflow == Overflow.DROP_NEWEST) return false;
+        poll(false);
+      }
+      // Otherwise, another producer claimed the position first, so retry.
+    }
+  }
+
+  /**
+   * Takes the oldest span, handing it to the delegate, or dropping it. This is normally only
+   * called by the consumer, but producers also call it for {@link Overflow#DROP_OLDEST}.
+   *
+   * @return false if the queue was empty
+   */
+  boolean poll(boolean deliver) {
+    while (true) {
+      long position = head.get();
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference < 0) return false; // empty, or a producer hasn't finished writing
+      if (difference == 0 && head.compareAndSet(position, position + 1)) {
+        TraceContext context = contexts[index];
+        MutableSpan span = spans[index];
+        Cause cause = causes[index];
+        contexts[index] = null;
+        spans[index] = null;
+        causes[index] = null;
+        sequences.set(index, position + mask + 1); // free for the next lap
+        if (deliver) {
+          deliver(context, span, cause);
+        } else {
+          dropped.incrementAndGet();
+        }
+        return true;
+      }
+    }
+  }
+
+  void deliver(TraceContext context, MutableSpan span, Cause cause) {
+    try {
+      delegate.end(context, span, cause);
+    } catch (RuntimeException e) {
+      log.debug("error handling span {}", span, e);
+    }
+  }
+
+  void consume() {
+    int idlePolls = 0;
+    while (!closed) {
+      if (poll(true)) {
+        idlePolls = 0;
+      } else {
+        await(++idlePolls);
+      }
+    }
+    boolean drained;
+    do { // hand over what was queued before close
+      drained = !poll(true);
+    } while (!drained);
+  }
+
+  void await(int idlePolls) {
+    switch (waitStrategy) {
+      case BUSY_SPIN:
+        break;
+      case YIELD:
+        Thread.yield();
+        break;
+      case SLEEP:
+        LockSupport.parkNanos(Math.min(idlePolls, 1000) * 1000L);
+        break;
+      case BLOCK:
+        // Producers read this after publishing, so either they see it or we see their span.
+        consumerParked = true;
+        if (isEmpty()) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        consumerParked = false;
+        break;
+    }
+  }
+
+  boolean isEmpty() {
+    long position = head.get();
+    return sequences.get((int) position & mask) - (position + 1) < 0;
+  }
+
+  void recordEnqueueNanos(long nanos) {
+    enqueueNanos.incrementAndGet((64 - Long.numberOfLeadingZeros(nanos)) & 63);
+    long max;
+    while (nanos > (max = enqueueNanosMax.get())) {
+      if (enqueueNanosMax.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  /** Returns the upper bound of the histogram bucket holding the given quantile. */
+  long enqueueNanosQuantile(double quantile) {
+    long total = 0;
+    for (int i = 0; i < 64; i++) total += enqueueNanos.get(i);
+    long rank = (long) Math.ceil(total * quantile), seen = 0;
+    for (int i = 0; i < 64; i++) {
+      seen += enqueueNanos.get(i);
+      if (seen >= rank && seen > 0) return i == 63 ? Long.MAX_VALUE : 1L << i;
+    }
+    return 0;
+  }
+
+  /** Stops accepting spans, and waits up to a second for queued ones to be handed over. */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    LockSupport.unpark(consumer);
+    try {
+      consumer.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @ManagedAttribute(description = "Slots in the queue")
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  @ManagedAttribute(description = "Spans waiting for the consumer thread")
+  public long getSize() {
+    return Math.max(0, tail.get() - head.get());
+  }
+
+  @ManagedAttribute(description = "Spans queued since startup")
+  public long getEnqueuedCount() {
+    return enqueued.get();
+  }
+
+  @ManagedAttribute(description = "Spans dropped because the queue was full")
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @ManagedAttribute(description = "Median time to queue a span, in nanoseconds (power of 2)")
+  public long getEnqueueNanosP50() {
+    return enqueueNanosQuantile(0.5);
+  }
+
+  @ManagedAttribute(description = "99th percentile time to queue a span, in nanoseconds")
+  public long getEnqueueNanosP99() {
+    return enqueueNanosQuantile(0.99);
+  }
+
+  @ManagedAttribute(description = "99.9th percentile time to queue a span, in nanoseconds")
+  public long getEnqueueNanosP999() {
+    return enqueueNanosQuantile(0.999);
+  }
+
+  @ManagedAttribute(description = "Longest time to queue a span, in nanoseconds")
+  public long getEnqueueNanosMax() {
+    return enqueueNanosMax.get();
+  }
+
+  @Override public String toString() {
+    return "RingBufferSpanHandler{" + delegate + "}";
+  }
+}
@@ -0,0 +1,364 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
+
+/**
+ * Spreads spans across several Zipkin collectors by trace ID, so that no one collector receives
+ * all of them, while each trace is still stored whole by one collector.
+ *
+ * <p>Each collector, or shard, has its own {@code AsyncZipkinSpanHandler}, so a slow one doesn't
+ * hold back the others. Shards are placed on a consistent-hash ring at {@link
+ * Builder#virtualNodes(int)} points each, and a trace belongs to the first point after its hashed
+ * ID. Adding or removing a collector only moves the traces at its points. As the ring only depends
+ * on the endpoints, every service configured with the same ones sends a trace to the same place.
+ *
+ * <p>A shard that fails {@link Builder#failureThreshold(int)} messages in a row is skipped for the
+ * {@link Builder#retryInterval(long, TimeUnit) retry interval}, and its traces go to the next
+ * healthy shard on the ring. After that, its traces are sent to it again, and one more failure
+ * skips it again. Spans already queued for a failing shard aren't moved, so traces in flight when
+ * it fails may be split between two collectors.
+ */
+@Slf4j
+@ManagedResource(objectName = "brave.webmvc:type=ShardingSpanHandler")
+public final class ShardingSpanHandler extends SpanHandler implements Closeable {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final Map<String, Sender> senders = new LinkedHashMap<>();
+    int virtualNodes = 100, failureThreshold = 3;
+    long retryIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+    boolean alwaysReportSpans;
+
+    Builder() {
+    }
+
+    /** Adds a collector. Its endpoint decides where it is on the ring. */
+    public Builder addShard(String endpoint, Sender sender) {
+      if (endpoint == null) throw new NullPointerException("endpoint == null");
+      if (sender == null) throw new NullPointerException("sender == null");
+      if (senders.containsKey(endpoint)) {
+        throw new IllegalArgumentException("duplicate endpoint " + endpoint);
+      }
+      senders.put(endpoint, sender);
+      return this;
+    }
+
+    /** Points on the ring per shard. More spread traces more evenly. Default 100. */
+    public Builder virtualNodes(int virtualNodes) {
+      if (virtualNodes < 1) throw new IllegalArgumentException("virtualNodes < 1");
+      this.virtualNodes = virtualNodes;
+      return this;
+    }
+
+    /** Messages failing in a row before a shard is skipped. Default 3. */
+    public Builder failureThreshold(int failureThreshold) {
+      if (failureThreshold < 1) throw new IllegalArgumentException("failureThreshold < 1");
+      this.failureThreshold = failureThreshold;
+      return this;
+    }
+
+    /** How long a failing shard is skipped before it is tried again. Default 30s. */
+    public Builder retryInterval(long retryInterval, TimeUnit unit) {
+      if (retryInterval <= 0) throw new IllegalArgumentException("retryInterval <= 0");
+      this.retryIntervalNanos = unit.toNanos(retryInterval);
+      return this;
+    }
+
+    /** Reports unsampled spans too, as {@code AsyncZipkinSpanHandler} does. Default false. */
+    public Builder alwaysReportSpans(boolean alwaysReportSpans) {
+      this.alwaysReportSpans = alwaysReportSpans;
+      return this;
+    }
+
+    /** Starts a reporter thread per shard. */
+    public ShardingSpanHandler build() {
+      if (senders.isEmpty()) throw new IllegalArgumentException("no shards were added");
+      return new ShardingSpanHandler(this);
+    }
+  }
+
+  final boolean alwaysReportSpans;
+  final Shard[] shards;
+  /** Sorted hashes of the points on the ring, and the shard at each */
+  final long[] pointHashes;
+  final Shard[] pointShards;
+
+  ShardingSpanHandler(Builder builder) {
+    alwaysReportSpans = builder.alwaysReportSpans;
+    shards = new Shard[builder.senders.size()];
+    TreeMap<Long, Shard> ring = new TreeMap<>();
+    int i = 0;
+    for (Map.Entry<String, Sender> entry : builder.senders.entrySet()) {
+      Shard shard = new Shard(entry.getKey(), entry.getValue(), builder);
+      shards[i++] = shard;
+      for (int node = 0; node < builder.virtualNodes; node++) {
+        ring.put(hash(shard.endpoint + "#" + node), shard);
+      }
+    }
+    pointHashes = new long[ring.size()];
+    pointShards = new Shard[ring.size()];
+    i = 0;
+    for (Map.Entry<Long, Shard> point : ring.entrySet()) {
+      pointHashes[i] = point.getKey();
+      pointShards[i++] = point.getValue();
+    }
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (cause == Cause.ABANDONED) return true;
+    if (!alwaysReportSpans && !Boolean.TRUE.equals(context.sampled())) return true;
+    Shard shard = shard(context.traceId());
+    shard.spans.incrementAndGet();
+    return shard.handler.end(context, span, cause);
+  }
+
+  /** Returns the first healthy shard clockwise from the trace ID, or its own if none are. */
+  Shard shard(long traceId) {
+    int point = Arrays.binarySearch(pointHashes, mix(traceId));
+    if (point < 0) point = -point - 1; // the insertion point is the next point on the ring
+    if (point == pointHashes.length) point = 0;
+    Shard owner = pointShards[point];
+    if (owner.isHealthy() || !anyHealthy()) return owner;
+    for (int i = 1; i < pointShards.length; i++) {
+      Shard shard = pointShards[(point + i) % pointShards.length];
+      if (shard.isHealthy()) return shard;
+    }
+    return owner;
+  }
+
+  boolean anyHealthy() {
+    for (Shard shard : shards) {
+      if (shard.isHealthy()) return true;
+    }
+    return false;
+  }
+
+  /** Flushes and closes each shard's reporter and sender. */
+  @Override public void close() {
+    for (Shard shard : shards) shard.close();
+  }
+
+  @ManagedAttribute(description = "Collector endpoints, in the order of the other attributes")
+  public String[] getEndpoints() {
+    String[] result = new String[shards.length];
+    for (int i = 0; i < shards.length; i++) result[i] = shards[i].endpoint;
+    return result;
+  }
+
+  @ManagedAttribute(description = "Whether each shard is receiving its traces")
+  public boolean[] getHealthy() {
+    boolean[] result = new boolean[shards.length];
+    for (int i = 0; i < shards.length; i++) result[i] = shards[i].isHealthy();
+    return result;
+  }
+
+  @ManagedAttribute(description = "Spans routed to each shard")
+  public long[] getSpanCounts() {
+    long[] result = new long[shards.length];
+    for (int i = 0; i < shards.length; i++) result[i] = shards[i].spans.get();
+    return result;
+  }
+
+  @ManagedAttribute(description = "Messages each shard's collector accepted")
+  public long[] getMessageCounts() {
+    long[] result = new long[shards.length];
+    for (int i = 0; i < shards.length; i++) result[i] = shards[i].messages.get();
+    return result;
+  }
+
+  @ManagedAttribute(description = "Bytes of span messages each shard's collector accepted")
+  public long[] getMessageBytes() {
+    long[] result = new long[shards.length];
+    for (int i = 0; i < shards.length; i++) result[i] = shards[i].messageBytes.get();
+    return result;
+  }
+
+  @ManagedAttribute(description = "Messages each shard failed to send")
+  public long[] getFailedMessageCounts() {
+    long[] result = new long[shards.length];
+    for (int i = 0; i < shards.length; i++) result[i] = shards[i].failedMessages.get();
+    return result;
+  }
+
+  @Override public String toString() {
+    return "ShardingSpanHandler{" + Arrays.toString(getEndpoints()) + "}";
+  }
+
+  /** A 64-bit FNV-1a hash, mixed as trace IDs are so that both spread over the same range */
+  static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /** MurmurHash3's 64-bit finalizer, so that similar inputs land far apart on the ring */
+  static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** Sends one collector's messages, tracking whether they succeed. */
+  static final class Shard extends Sender {
+    final String endpoint;
+    final Sender delegate;
+    final int failureThreshold;
+    final long retryIntervalNanos;
+    final AsyncZipkinSpanHandler handler;
+    final AtomicLong spans = new AtomicLong(), messages = new AtomicLong();
+    final AtomicLong messageBytes = new AtomicLong(), failedMessages = new AtomicLong();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    volatile boolean healthy = true;
+    volatile long retryAtNanos;
+
+    Shard(String endpoint, Sender delegate, Builder builder) {
+      this.endpoint = endpoint;
+      this.delegate = delegate;
+      this.failureThreshold = builder.failureThreshold;
+      this.retryIntervalNanos = builder.retryIntervalNanos;
+      this.handler = AsyncZipkinSpanHandler.newBuilder(this)
+          .alwaysReportSpans(builder.alwaysReportSpans)
+          .build();
+    }
+
+    /** True unless skipped, which lasts until the retry interval passes. */
+    boolean isHealthy() {
+      return healthy || System.nanoTime() - retryAtNanos >= 0;
+    }
+
+    // Messages are sent from the shard's reporter thread, so these aren't called concurrently
+    void succeeded(long bytes) {
+      messages.incrementAndGet();
+      messageBytes.addAndGet(bytes);
+      consecutiveFailures.set(0);
+      if (healthy) return;
+      healthy = true;
+      log.info("Zipkin endpoint {} recovered. Its traces are sent to it again", endpoint);
+    }
+
+    void failed(Throwable error) {
+      failedMessages.incrementAndGet();
+      if (consecutiveFailures.incrementAndGet() < failureThreshold) return;
+      // Also pushes back the retry of a shard that failed again after its interval
+      retryAtNanos = System.nanoTime() + retryIntervalNanos;
+      if (!healthy) return;
+      healthy = false;
+      log.warn("Zipkin endpoint {} failed {} messages in a row. Moving its traces for {}ms",
+          endpoint, failureThreshold, TimeUnit.NANOSECONDS.toMillis(retryIntervalNanos), error);
+    }
+
+    @Override public Encoding encoding() {
+      return delegate.encoding();
+    }
+
+    @Override public int messageMaxBytes() {
+      return delegate.messageMaxBytes();
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return delegate.messageSizeInBytes(encodedSpans);
+    }
+
+    @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+      return delegate.messageSizeInBytes(encodedSizeInBytes);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      return new ShardCall(delegate.sendSpans(encodedSpans),
+          delegate.messageSizeInBytes(encodedSpans));
+    }
+
+    @Override public CheckResult check() {
+      return delegate.check();
+    }
+
+    @Override public void close() {
+      handler.close();
+      try {
+        delegate.close();
+      } catch (IOException e) {
+        log.warn("error closing sender for {}", endpoint, e);
+      }
+    }
+
+    @Override public String toString() {
+      return endpoint;
+    }
+
+    final class ShardCall extends Call.Base<Void> {
+      final Call<Void> call;
+      final long bytes;
+
+      ShardCall(Call<Void> call, long bytes) {
+        this.call = call;
+        this.bytes = bytes;
+      }
+
+      @Override protected Void doExecute() throws IOException {
+        try {
+          call.execute();
+        } catch (IOException | RuntimeException | Error e) {
+          failed(e);
+          throw e;
+        }
+        succeeded(bytes);
+        return null;
+      }
+
+      @Override protected void doEnqueue(final Callback<Void> callback) {
+        call.enqueue(new Callback<Void>() {
+          @Override public void onSuccess(Void value) {
+            succeeded(bytes);
+            callback.onSuccess(value);
+          }
+
+          @Override public void onError(Throwable t) {
+            failed(t);
+            callback.onError(t);
+          }
+        });
+      }
+
+      @Override protected void doCancel() {
+        call.cancel();
+      }
+
+      @Override protected boolean doIsCanceled() {
+        return call.isCanceled();
+      }
+
+      @Override public Call<Void> clone() {
+        return new ShardCall(call.clone(), bytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package brave.webmvc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets concurrent callers with the same key share one call. The first caller runs it, and any
+ * others arriving before it completes wait for that result, or exception, instead of calling
+ * again. Nothing is kept once the call completes: later callers start a new one.
+ *
+ * <p>Waiting callers give up after the timeout, which should be at least how long the call itself
+ * can take. The first to give up also forgets the call, so that later callers start a new one
+ * instead of joining one that may never complete.
+ */
+final class SingleFlight<K, V> {
+  static final class Result<V> {
+    final V value;
+    /** True when another caller made the call this value came from */
+    final boolean shared;
+
+    Result(V value, boolean shared) {
+      this.value = value;
+      this.shared = shared;
+    }
+  }
+
+  final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<>();
+  final long timeoutNanos;
+
+  SingleFlight(long timeout, TimeUnit unit) {
+    if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0");
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  /** @throws TimeoutException if another caller's call didn't complete within the timeout */
+  Result<V> execute(K key, Callable<V> callable) throws Exception {
+    FutureTask<V> flight = new FutureTask<>(callable);
+    FutureTask<V> inFlight = flights.putIfAbsent(key, flight);
+    if (inFlight != null) {
+      try {
+        return new Result<>(await(inFlight, timeoutNanos), true);
+      } catch (TimeoutException e) {
+        flights.remove(key, inFlight);
+        throw e;
+      }
+    }
+    try {
+      flight.run();
+    } finally {
+      flights.remove(key, flight);
+    }
+    return new Result<>(await(flight, 0L), false); // already done
+  }
+
+  static <V> V await(FutureTask<V> flight, long timeoutNanos) throws Exception {
+    try {
+      return flight.get(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+}
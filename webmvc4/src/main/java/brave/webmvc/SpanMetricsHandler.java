@@ -0,0 +1,215 @@
+package brave.webmvc;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts finished server and client spans into rate, error and duration (RED) metrics, written in
+ * the Prometheus text format by {@link #writeTo(Appendable)}.
+ *
+ * <p>Spans are grouped by local service, kind, route, HTTP method and status code. The route is
+ * the "http.route" tag if present, otherwise what follows the method in the span name, such as
+ * "/api" in "get /api". Brave only tags status codes other than 2xx, so spans without one are
+ * counted as "2xx", or "" if they failed without a response. A span is an error if it has an
+ * exception or "error" tag, or a 5xx status.
+ *
+ * <p>This only sees every request when tracing is built with {@code alwaysSampleLocal()}, so
+ * metrics stay complete however few traces are sampled. Counting a span into an existing series
+ * doesn't allocate: lookups use a reusable per-thread key, and counts are atomic fields. At most
+ * the given number of series are kept, after which spans of new ones are only counted as dropped.
+ */
+public final class SpanMetricsHandler extends SpanHandler {
+  /** Upper bounds of the duration buckets, in microseconds: Prometheus' defaults */
+  static final long[] BUCKET_MICROS =
+      {5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000};
+  static final String[] BUCKET_LABELS =
+      {"0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "+Inf"};
+  static final String STATUS_2XX = "2xx", STATUS_NONE = "";
+
+  final int maxSeries;
+  final ConcurrentMap<Key, Series> series = new ConcurrentHashMap<>();
+  final AtomicLong spansDropped = new AtomicLong();
+  final ThreadLocal<Key> lookupKey = new ThreadLocal<Key>() {
+    @Override protected Key initialValue() {
+      return new Key();
+    }
+  };
+
+  /** @param maxSeries the most label combinations kept, which bounds memory and scrape size */
+  public SpanMetricsHandler(int maxSeries) {
+    if (maxSeries < 1) throw new IllegalArgumentException("maxSeries < 1");
+    this.maxSeries = maxSeries;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (cause == Cause.ABANDONED) return true;
+    Kind kind = span.kind();
+    if (kind != Kind.SERVER && kind != Kind.CLIENT) return true;
+
+    String status = span.tag("http.status_code");
+    boolean error = span.error() != null || span.tag("error") != null
+        || (status != null && status.startsWith("5"));
+    if (status == null) status = error ? STATUS_NONE : STATUS_2XX;
+
+    Key key = lookupKey.get().set(span.localServiceName(), kind, span.name(), status);
+    Series series = this.series.get(key);
+    if (series == null) {
+      series = newSeries(key, span);
+      if (series == null) {
+        spansDropped.incrementAndGet();
+        return true;
+      }
+    }
+
+    long start = span.startTimestamp(), finish = span.finishTimestamp();
+    series.record(finish > start && start != 0L ? finish - start : 0L, error);
+    return true;
+  }
+
+  Series newSeries(Key lookup, MutableSpan span) {
+    if (series.size() >= maxSeries) return null;
+    Key key = new Key().set(lookup.service, lookup.kind, lookup.name, lookup.status);
+    Series result = new Series(labels(key, span));
+    Series existing = series.putIfAbsent(key, result);
+    return existing != null ? existing : result;
+  }
+
+  static String labels(Key key, MutableSpan span) {
+    String route = span.tag("http.route");
+    if (route == null && key.name != null) {
+      int space = key.name.indexOf(' ');
+      route = space != -1 ? key.name.substring(space + 1) : "";
+    }
+    String method = span.tag("http.method");
+    StringBuilder result = new StringBuilder();
+    label(result, "service", key.service).append(',');
+    label(result, "kind", key.kind == Kind.SERVER ? "server" : "client").append(',');
+    label(result, "route", route).append(',');
+    label(result, "method", method).append(',');
+    label(result, "status", key.status);
+    return result.toString();
+  }
+
+  static StringBuilder label(StringBuilder result, String name, String value) {
+    result.append(name).append("=\"");
+    if (value == null) return result.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        result.append('\\').append(c);
+      } else if (c == '\n') {
+        result.append("\\n");
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append('"');
+  }
+
+  /** Writes all series in the Prometheus text exposition format, version 0.0.4. */
+  public void writeTo(Appendable out) throws IOException {
+    List<Series> sorted = new ArrayList<>(series.values());
+    Collections.sort(sorted, new Comparator<Series>() {
+      @Override public int compare(Series left, Series right) {
+        return left.labels.compareTo(right.labels);
+      }
+    });
+
+    out.append("# HELP span_duration_seconds Duration of server and client spans\n");
+    out.append("# TYPE span_duration_seconds histogram\n");
+    for (Series series : sorted) {
+      // Read count first, so that buckets, recorded before it, add up to at least this
+      long count = series.count.get(), cumulative = 0;
+      for (int i = 0; i < BUCKET_LABELS.length; i++) {
+        cumulative += series.buckets.get(i);
+        long value = i == BUCKET_LABELS.length - 1 ? count : Math.min(cumulative, count);
+        out.append("span_duration_seconds_bucket{").append(series.labels)
+            .append(",le=\"").append(BUCKET_LABELS[i]).append("\"} ")
+            .append(Long.toString(value)).append('\n');
+      }
+      out.append("span_duration_seconds_sum{").append(series.labels).append("} ")
+          .append(Double.toString(series.sumMicros.get() / 1e6)).append('\n');
+      out.append("span_duration_seconds_count{").append(series.labels).append("} ")
+          .append(Long.toString(count)).append('\n');
+    }
+
+    out.append("# HELP span_errors_total Server and client spans that failed\n");
+    out.append("# TYPE span_errors_total counter\n");
+    for (Series series : sorted) {
+      out.append("span_errors_total{").append(series.labels).append("} ")
+          .append(Long.toString(series.errors.get())).append('\n');
+    }
+
+    out.append("# HELP span_metrics_dropped_total Spans not counted as maxSeries was reached\n");
+    out.append("# TYPE span_metrics_dropped_total counter\n");
+    out.append("span_metrics_dropped_total ").append(Long.toString(spansDropped.get()))
+        .append('\n');
+  }
+
+  @Override public String toString() {
+    return "SpanMetricsHandler{series=" + series.size() + "}";
+  }
+
+  /** Identifies a series. Mutable, so that lookups can reuse one per thread. */
+  static final class Key {
+    String service, name, status;
+    Kind kind;
+    int hashCode;
+
+    Key set(String service, Kind kind, String name, String status) {
+      this.service = service;
+      this.kind = kind;
+      this.name = name;
+      this.status = status;
+      int h = service != null ? service.hashCode() : 0;
+      h = h * 31 + kind.ordinal();
+      h = h * 31 + (name != null ? name.hashCode() : 0);
+      hashCode = h * 31 + status.hashCode();
+      return this;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return kind == that.kind && status.equals(that.status)
+          && (service == null ? that.service == null : service.equals(that.service))
+          && (name == null ? that.name == null : name.equals(that.name));
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  static final class Series {
+    final String labels;
+    /** Bucket i counts durations above bound i-1, up to bound i. The last is unbounded. */
+    final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LABELS.length);
+    final AtomicLong count = new AtomicLong(), sumMicros = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    Series(String labels) {
+      this.labels = labels;
+    }
+
+    void record(long durationMicros, boolean error) {
+      int bucket = 0;
+      while (bucket < BUCKET_MICROS.length && durationMicros > BUCKET_MICROS[bucket]) bucket++;
+      buckets.incrementAndGet(bucket);
+      sumMicros.addAndGet(durationMicros);
+      if (error) errors.incrementAndGet();
+      count.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package brave.webmvc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Logs how long an application context took to start, and which beans took longest to create.
+ *
+ * <p>A bean's time runs from before it is instantiated until it is initialized, so it includes
+ * creating any dependencies first. The report ranks beans by their own time, excluding those
+ * dependencies. Beans created before this is registered, such as bean post processors, are not
+ * timed, though they count toward the total. Contexts are refreshed on one thread, so the
+ * bookkeeping isn't synchronized.
+ */
+@Slf4j
+public final class StartupTimer extends InstantiationAwareBeanPostProcessorAdapter
+    implements BeanFactoryPostProcessor, ApplicationListener<ContextRefreshedEvent> {
+  /** Times the given context from now until it is refreshed. Call before refresh. */
+  public static void install(ConfigurableApplicationContext context, String name) {
+    StartupTimer timer = new StartupTimer(context, name);
+    context.addBeanFactoryPostProcessor(timer);
+    context.addApplicationListener(timer);
+  }
+
+  static final int REPORTED_BEANS = 10;
+
+  static final class BeanTime {
+    final String name;
+    final long startNanos;
+    long totalNanos, dependencyNanos;
+
+    BeanTime(String name, long startNanos) {
+      this.name = name;
+      this.startNanos = startNanos;
+    }
+
+    long ownNanos() {
+      return totalNanos - dependencyNanos;
+    }
+  }
+
+  final ConfigurableApplicationContext context;
+  final String name;
+  final long startNanos = System.nanoTime();
+  long definitionsNanos;
+  volatile boolean reported; // beans created later, such as lazy ones, aren't timed
+  final Deque<BeanTime> creating = new ArrayDeque<>();
+  final Map<String, BeanTime> created = new LinkedHashMap<>();
+
+  StartupTimer(ConfigurableApplicationContext context, String name) {
+    this.context = context;
+    this.name = name;
+  }
+
+  /** Called once bean definitions are loaded, which is when beans start to be created. */
+  @Override public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+    definitionsNanos = System.nanoTime() - startNanos;
+    beanFactory.addBeanPostProcessor(this);
+  }
+
+  @Override public Object postProcessBeforeInstantiation(Class<?> beanClass, String beanName) {
+    if (reported) return null;
+    creating.push(new BeanTime(beanName, System.nanoTime()));
+    return null;
+  }
+
+  @Override public Object postProcessAfterInitialization(Object bean, String beanName)
+      throws BeansException {
+    if (reported) return bean;
+    // Inner beans and factory bean products don't have a matching start
+    BeanTime time = creating.peek();
+    if (time == null || !time.name.equals(beanName)) return bean;
+    creating.pop();
+    time.totalNanos = System.nanoTime() - time.startNanos;
+    BeanTime dependent = creating.peek();
+    if (dependent != null) dependent.dependencyNanos += time.totalNanos;
+    created.put(beanName, time);
+    return bean;
+  }
+
+  @Override public void onApplicationEvent(ContextRefreshedEvent event) {
+    if (event.getApplicationContext() != context || reported) return; // a child context
+    reported = true;
+    long refreshNanos = System.nanoTime() - startNanos;
+    List<BeanTime> slowest = new ArrayList<>(created.values());
+    Collections.sort(slowest, new Comparator<BeanTime>() {
+      @Override public int compare(BeanTime left, BeanTime right) {
+        return Long.compare(right.ownNanos(), left.ownNanos());
+      }
+    });
+    StringBuilder beans = new StringBuilder();
+    for (BeanTime time : slowest.subList(0, Math.min(REPORTED_BEANS, slowest.size()))) {
+      beans.append(String.format("%n  %6dms %s", millis(time.ownNanos()), time.name));
+    }
+    log.info("{} context started in {}ms ({}ms loading definitions), creating {} beans. "
+            + "Slowest, excluding dependencies:{}", name, millis(refreshNanos),
+        millis(definitionsNanos), created.size(), beans);
+    created.clear();
+  }
+
+  static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
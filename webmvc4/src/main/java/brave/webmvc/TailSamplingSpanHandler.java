@@ -0,0 +1,275 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Holds the spans of each local trace until its root finishes, then hands them all to another
+ * handler, such as {@code AsyncZipkinSpanHandler}, if the trace was slow, failed, or was sampled.
+ *
+ * <p>This only sees unsampled spans when tracing is built with {@code alwaysSampleLocal()}. Spans
+ * of sampled traces are the baseline, and are handed over immediately. The delegate must report
+ * the others too, for example {@code AsyncZipkinSpanHandler} with {@code alwaysReportSpans}.
+ *
+ * <p>A local trace is kept when any of its spans took at least the latency threshold, has an
+ * error, or has a 5xx status code. The decision is remembered until the trace leaves the window,
+ * so spans that finish after their root, such as async callbacks, follow it.
+ *
+ * <p>Memory is capped by the number of spans held and traces tracked. When either is reached, the
+ * oldest trace is decided with the spans it has so far, and counted as an eviction. A trace still
+ * undecided when it leaves the window is kept, as it has been running for at least that long.
+ */
+@Slf4j
+@ManagedResource(objectName = "brave.webmvc:type=TailSamplingSpanHandler")
+public final class TailSamplingSpanHandler extends SpanHandler {
+  public static Builder newBuilder(SpanHandler delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    final SpanHandler delegate;
+    long latencyThresholdMicros = TimeUnit.MILLISECONDS.toMicros(500);
+    long windowNanos = TimeUnit.SECONDS.toNanos(10);
+    int maxSpans = 100000, maxTraces = 10000;
+
+    Builder(SpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /** Traces with a span taking at least this long are kept. Default 500ms. */
+    public Builder latencyThreshold(long latencyThreshold, TimeUnit unit) {
+      if (latencyThreshold < 0) throw new IllegalArgumentException("latencyThreshold < 0");
+      this.latencyThresholdMicros = unit.toMicros(latencyThreshold);
+      return this;
+    }
+
+    /**
+     * How long after its first span finishes a trace is tracked. This should be longer than the
+     * latency threshold, so that only slow traces outlive it. Default 10s.
+     */
+    public Builder window(long window, TimeUnit unit) {
+      if (window <= 0) throw new IllegalArgumentException("window <= 0");
+      this.windowNanos = unit.toNanos(window);
+      return this;
+    }
+
+    /** Most spans held while their traces are undecided. Default 100000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans < 1) throw new IllegalArgumentException("maxSpans < 1");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /** Most traces tracked, decided or not. Default 10000. */
+    public Builder maxTraces(int maxTraces) {
+      if (maxTraces < 1) throw new IllegalArgumentException("maxTraces < 1");
+      this.maxTraces = maxTraces;
+      return this;
+    }
+
+    public TailSamplingSpanHandler build() {
+      return new TailSamplingSpanHandler(this);
+    }
+  }
+
+  /** Finished spans, in the order they finished */
+  static final class Spans {
+    final List<TraceContext> contexts = new ArrayList<>();
+    final List<MutableSpan> spans = new ArrayList<>();
+    final List<Cause> causes = new ArrayList<>();
+
+    void add(TraceContext context, MutableSpan span, Cause cause) {
+      contexts.add(context);
+      spans.add(span);
+      causes.add(cause);
+    }
+
+    void addAll(Spans other) {
+      contexts.addAll(other.contexts);
+      spans.addAll(other.spans);
+      causes.addAll(other.causes);
+    }
+
+    int size() {
+      return spans.size();
+    }
+  }
+
+  /** Spans of one local trace, or once decided, whether later ones are kept */
+  static final class Trace {
+    final long startNanos;
+    Spans spans = new Spans(); // null once decided
+    boolean interesting, kept;
+
+    Trace(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    boolean decided() {
+      return spans == null;
+    }
+  }
+
+  final SpanHandler delegate;
+  final long latencyThresholdMicros, windowNanos;
+  final int maxSpans, maxTraces;
+  // In insertion order, so the first trace is the oldest
+  final LinkedHashMap<Long, Trace> traces = new LinkedHashMap<>();
+  int bufferedSpans; // guarded by traces
+  final AtomicLong sampled = new AtomicLong(), kept = new AtomicLong();
+  final AtomicLong dropped = new AtomicLong(), evictions = new AtomicLong();
+  final AtomicLong expirations = new AtomicLong();
+
+  TailSamplingSpanHandler(Builder builder) {
+    delegate = builder.delegate;
+    latencyThresholdMicros = builder.latencyThresholdMicros;
+    windowNanos = builder.windowNanos;
+    maxSpans = builder.maxSpans;
+    maxTraces = builder.maxTraces;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (cause == Cause.ABANDONED) return true;
+    if (Boolean.TRUE.equals(context.sampled())) { // the baseline
+      sampled.incrementAndGet();
+      deliver(context, span, cause);
+      return true;
+    }
+
+    long localRootId = context.localRootId() != 0L ? context.localRootId() : context.traceId();
+    boolean localRoot = context.spanId() == localRootId;
+    boolean interesting = isInteresting(span);
+    long now = System.nanoTime();
+    Spans toDeliver = new Spans();
+    synchronized (traces) {
+      expire(now, toDeliver);
+      Trace trace = traces.get(localRootId);
+      if (trace == null) {
+        trace = new Trace(now);
+        traces.put(localRootId, trace);
+      }
+      if (!trace.decided()) {
+        trace.spans.add(context, span, cause);
+        trace.interesting |= interesting;
+        bufferedSpans++;
+        if (localRoot) decide(trace, trace.interesting, toDeliver);
+      } else if (trace.kept) { // finished after its root
+        toDeliver.add(context, span, cause);
+      }
+      while (bufferedSpans > maxSpans || traces.size() > maxTraces) evictOldest(toDeliver);
+    }
+    // Hand over outside the lock, as the delegate may block
+    for (int i = 0; i < toDeliver.size(); i++) {
+      deliver(toDeliver.contexts.get(i), toDeliver.spans.get(i), toDeliver.causes.get(i));
+    }
+    return true;
+  }
+
+  boolean isInteresting(MutableSpan span) {
+    if (span.error() != null || span.tag("error") != null) return true;
+    String statusCode = span.tag("http.status_code");
+    if (statusCode != null && statusCode.startsWith("5")) return true;
+    long startTimestamp = span.startTimestamp(), finishTimestamp = span.finishTimestamp();
+    return startTimestamp != 0L && finishTimestamp - startTimestamp >= latencyThresholdMicros;
+  }
+
+  /** Marks the trace decided, adding it to {@code toDeliver} if kept. Call under the lock. */
+  void decide(Trace trace, boolean keep, Spans toDeliver) {
+    if (keep) {
+      kept.incrementAndGet();
+      toDeliver.addAll(trace.spans);
+    } else {
+      dropped.incrementAndGet();
+    }
+    bufferedSpans -= trace.spans.size();
+    trace.spans = null;
+    trace.kept = keep;
+  }
+
+  /** Removes traces that left the window, keeping any still undecided. Call under the lock. */
+  void expire(long now, Spans toDeliver) {
+    Iterator<Trace> i = traces.values().iterator();
+    while (i.hasNext()) {
+      Trace trace = i.next();
+      if (now - trace.startNanos < windowNanos) return;
+      if (!trace.decided()) {
+        expirations.incrementAndGet();
+        decide(trace, true, toDeliver);
+      }
+      i.remove();
+    }
+  }
+
+  /** Removes the oldest trace, deciding it with the spans it has so far. Call under the lock. */
+  void evictOldest(Spans toDeliver) {
+    Iterator<Trace> i = traces.values().iterator();
+    Trace trace = i.next();
+    if (!trace.decided()) {
+      evictions.incrementAndGet();
+      decide(trace, trace.interesting, toDeliver);
+    }
+    i.remove();
+  }
+
+  void deliver(TraceContext context, MutableSpan span, Cause cause) {
+    try {
+      delegate.end(context, span, cause);
+    } catch (RuntimeException e) {
+      log.debug("error handling span {}", span, e);
+    }
+  }
+
+  @ManagedAttribute(description = "Local traces tracked, including decided ones in the window")
+  public int getTraceCount() {
+    synchronized (traces) {
+      return traces.size();
+    }
+  }
+
+  @ManagedAttribute(description = "Spans held while their traces are undecided")
+  public int getBufferedSpanCount() {
+    synchronized (traces) {
+      return bufferedSpans;
+    }
+  }
+
+  @ManagedAttribute(description = "Spans handed over immediately, as their trace was sampled")
+  public long getSampledSpanCount() {
+    return sampled.get();
+  }
+
+  @ManagedAttribute(description = "Unsampled traces kept as slow, failed or expired")
+  public long getKeptCount() {
+    return kept.get();
+  }
+
+  @ManagedAttribute(description = "Unsampled traces dropped as fast and successful")
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @ManagedAttribute(description = "Traces decided early, as the span or trace limit was reached")
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute(description = "Traces kept as their root was still running after the window")
+  public long getExpirationCount() {
+    return expirations.get();
+  }
+
+  @Override public String toString() {
+    return "TailSamplingSpanHandler{" + delegate + "}";
+  }
+}
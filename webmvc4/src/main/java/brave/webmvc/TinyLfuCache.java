@@ -0,0 +1,201 @@
+package brave.webmvc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A size-bounded cache whose entries expire at most a fixed time after they are written. Entries
+ * put with a shorter ttl, such as the rest of their freshness lifetime, expire sooner.
+ *
+ * <p>Eviction follows W-TinyLFU: new entries go into a small LRU window, about 1% of the size.
+ * When the window overflows, its oldest entry only replaces the main region's least recently
+ * used entry if a {@link FrequencySketch} says it was requested more often. This keeps a burst
+ * of one-off keys from flushing the keys that are requested all the time.
+ *
+ * <p>Access is synchronized, as the work done under the lock is a few map operations. A ttl of
+ * zero disables caching.
+ */
+@ManagedResource(objectName = "brave.webmvc:type=TinyLfuCache")
+public class TinyLfuCache<K, V> {
+  static final class Entry<V> {
+    final V value;
+    final long expiresNanos;
+
+    Entry(V value, long expiresNanos) {
+      this.value = value;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+
+  final int maximumSize, windowMaximumSize;
+  final long ttlNanos;
+  final FrequencySketch sketch;
+  // Both in access order, so the first entry is the least recently used
+  final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+  final LinkedHashMap<K, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+  final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong(), expirations = new AtomicLong();
+
+  TinyLfuCache(int maximumSize, long ttl, TimeUnit unit) {
+    if (maximumSize < 2) throw new IllegalArgumentException("maximumSize < 2");
+    if (ttl < 0) throw new IllegalArgumentException("ttl < 0");
+    this.maximumSize = maximumSize;
+    this.windowMaximumSize = Math.max(1, maximumSize / 100);
+    this.ttlNanos = unit.toNanos(ttl);
+    this.sketch = new FrequencySketch(maximumSize);
+  }
+
+  /** Returns the value for the key, or null if absent or expired. */
+  V get(K key) {
+    if (ttlNanos == 0) {
+      misses.incrementAndGet();
+      return null;
+    }
+    long now = System.nanoTime();
+    Entry<V> entry;
+    synchronized (this) {
+      sketch.increment(key.hashCode());
+      entry = window.get(key);
+      if (entry == null) entry = main.get(key);
+      if (entry != null && now - entry.expiresNanos >= 0) {
+        if (window.remove(key) == null) main.remove(key);
+        expirations.incrementAndGet();
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  void put(K key, V value) {
+    put(key, value, ttlNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Caches the value for the given ttl, or the cache's if shorter. Nothing is cached if zero. */
+  void put(K key, V value, long ttl, TimeUnit unit) {
+    long entryTtlNanos = Math.min(ttlNanos, unit.toNanos(ttl));
+    if (entryTtlNanos <= 0) return;
+    long now = System.nanoTime();
+    Entry<V> entry = new Entry<>(value, now + entryTtlNanos);
+    synchronized (this) {
+      if (main.containsKey(key)) {
+        main.put(key, entry);
+        return;
+      }
+      window.put(key, entry);
+      if (window.size() <= windowMaximumSize) return;
+
+      Map.Entry<K, Entry<V>> candidate = removeEldest(window);
+      if (main.size() < maximumSize - windowMaximumSize) {
+        main.put(candidate.getKey(), candidate.getValue());
+        return;
+      }
+
+      // The main region is full, so either the candidate or its least recently used entry goes.
+      evictions.incrementAndGet();
+      Map.Entry<K, Entry<V>> victim = main.entrySet().iterator().next();
+      boolean victimExpired = now - victim.getValue().expiresNanos >= 0;
+      if (victimExpired || sketch.frequency(candidate.getKey().hashCode())
+          > sketch.frequency(victim.getKey().hashCode())) {
+        main.remove(victim.getKey());
+        main.put(candidate.getKey(), candidate.getValue());
+      }
+    }
+  }
+
+  static <K, V> Map.Entry<K, V> removeEldest(LinkedHashMap<K, V> map) {
+    Iterator<Map.Entry<K, V>> i = map.entrySet().iterator();
+    Map.Entry<K, V> result = i.next();
+    i.remove();
+    return result;
+  }
+
+  @ManagedAttribute(description = "Entries currently cached, including any expired")
+  public synchronized int getSize() {
+    return window.size() + main.size();
+  }
+
+  @ManagedAttribute(description = "Most entries the cache will hold")
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  @ManagedAttribute(description = "Lookups that returned a value")
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  @ManagedAttribute(description = "Lookups that found nothing, or an expired value")
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  @ManagedAttribute(description = "Entries removed, or not admitted, because the cache was full")
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute(description = "Entries removed because they were looked up after expiring")
+  public long getExpirationCount() {
+    return expirations.get();
+  }
+
+  /**
+   * A count-min sketch estimating how often each key hash was seen, using four rows of saturating
+   * counters. Counters are halved after ten times the cache size increments, so the estimate
+   * favors recent popularity.
+   */
+  static final class FrequencySketch {
+    static final int[] SEEDS = {0x97cb3127, 0xb8a5e6f3, 0x5f356495, 0x2ff9a2a9};
+    static final int MAX_COUNT = 15;
+
+    final int[][] table = new int[SEEDS.length][];
+    final int mask, sampleSize;
+    int additions;
+
+    FrequencySketch(int maximumSize) {
+      int width = 8;
+      while (width < maximumSize) width <<= 1;
+      for (int i = 0; i < table.length; i++) table[i] = new int[width];
+      mask = width - 1;
+      sampleSize = 10 * maximumSize;
+    }
+
+    void increment(int hash) {
+      for (int i = 0; i < table.length; i++) {
+        int index = index(hash, i);
+        if (table[i][index] < MAX_COUNT) table[i][index]++;
+      }
+      if (++additions == sampleSize) reset();
+    }
+
+    int frequency(int hash) {
+      int result = MAX_COUNT;
+      for (int i = 0; i < table.length; i++) {
+        result = Math.min(result, table[i][index(hash, i)]);
+      }
+      return result;
+    }
+
+    int index(int hash, int row) {
+      int h = hash * SEEDS[row];
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    void reset() {
+      for (int[] row : table) {
+        for (int i = 0; i < row.length; i++) row[i] >>>= 1;
+      }
+      additions >>>= 1;
+    }
+  }
+}
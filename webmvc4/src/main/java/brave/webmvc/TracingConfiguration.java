@@ -1,32 +1,47 @@
 package brave.webmvc;
 
+import static brave.http.HttpRequestMatchers.pathStartsWith;
+
 import brave.CurrentSpanCustomizer;
 import brave.SpanCustomizer;
 import brave.Tracing;
 import brave.baggage.BaggageField;
-import brave.baggage.BaggagePropagation;
-import brave.baggage.BaggagePropagationConfig.SingleBaggageField;
 import brave.baggage.CorrelationScopeConfig.SingleCorrelationField;
 import brave.context.log4j2.ThreadContextScopeDecorator;
+import brave.handler.SpanHandler;
+import brave.http.HttpRequest;
+import brave.http.HttpRuleSampler;
 import brave.http.HttpTracing;
+import brave.httpasyncclient.TracingHttpAsyncClientBuilder;
 import brave.httpclient.TracingHttpClientBuilder;
-import brave.propagation.B3Propagation;
 import brave.propagation.CurrentTraceContext.ScopeDecorator;
 import brave.propagation.Propagation;
 import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
 import brave.spring.webmvc.DelegatingTracingFilter;
 import brave.spring.webmvc.SpanCustomizingAsyncHandlerInterceptor;
+import brave.webmvc.RingBufferSpanHandler.Overflow;
+import brave.webmvc.RingBufferSpanHandler.WaitStrategy;
+import brave.webmvc.TracePropagation.Format;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 import org.apache.http.client.HttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.springframework.beans.factory.ObjectFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import zipkin2.codec.Encoding;
 import zipkin2.reporter.Sender;
 import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
-import zipkin2.reporter.okhttp3.OkHttpSender;
+import zipkin2.reporter.brave.ZipkinSpanHandler;
 
 /**
  * This adds tracing configuration to any web mvc controllers or rest template clients.
@@ -47,33 +62,224 @@ public class TracingConfiguration extends WebMvcConfigurerAdapter {
         .add(SingleCorrelationField.create(USER_NAME)).build();
   }
 
+  /** Trace headers sent to the backend. All formats are accepted from callers. */
+  // Initialized as benchmarks construct this class directly
+  @Value("${zipkin.propagation:B3_MULTI}") Format propagationFormat = Format.B3_MULTI;
+
   /** Configures propagation for {@link #USER_NAME}, using the remote header "user_name" */
   @Bean Propagation.Factory propagationFactory() {
-    return BaggagePropagation.newFactoryBuilder(B3Propagation.FACTORY)
-        .add(SingleBaggageField.newBuilder(USER_NAME).addKeyName("user_name").build())
-        .build();
+    return UserNamePropagation.create(TracePropagation.create(propagationFormat), USER_NAME);
   }
 
+  /** Span encoding posted to Zipkin: PROTO3 messages are about half the size of JSON */
+  @Value("${zipkin.encoding:JSON}") Encoding encoding;
+
+  /** "gzip" or "none" */
+  @Value("${zipkin.compression:gzip}") String compression;
+
+  /** Largest message Zipkin accepts, after compression */
+  @Value("${zipkin.messageMaxBytes:5242880}") int messageMaxBytes;
+
+  /** Comma-separated Zipkin endpoints. Traces are sharded across them when there are several. */
+  @Value("${zipkin.endpoints:http://127.0.0.1:9411/api/v2/spans}") String[] endpoints;
+
   /** Configuration for how to send spans to Zipkin */
-  @Bean Sender sender() {
-    return OkHttpSender.create("http://127.0.0.1:9411/api/v2/spans");
+  @Bean @Lazy Sender sender() {
+    return sender(endpoints[0]);
   }
 
+  Sender sender(String endpoint) {
+    return CompressingSender.newBuilder(endpoint)
+        .encoding(encoding)
+        .codec(CompressingSender.codec(compression))
+        .messageMaxBytes(messageMaxBytes)
+        .build();
+  }
+
+  /** When set, spans are spooled to files in this directory instead of buffered in memory */
+  @Value("${zipkin.spool.directory:}") String spoolDirectory;
+
   /** Configuration for how to buffer spans into messages for Zipkin */
-  @Bean AsyncZipkinSpanHandler zipkinSpanHandler() {
-    return AsyncZipkinSpanHandler.create(sender());
+  @Bean @Lazy SpanHandler zipkinSpanHandler() {
+    // With tail sampling, unsampled spans that reach here were chosen to be kept
+    if (!spoolDirectory.isEmpty()) {
+      if (endpoints.length > 1) {
+        throw new IllegalStateException("zipkin.spool.directory supports only one endpoint");
+      }
+      return ZipkinSpanHandler.newBuilder(diskSpoolReporter())
+          .alwaysReportSpans(tailSamplingEnabled).build();
+    }
+    if (offHeapEnabled) {
+      if (endpoints.length > 1) {
+        throw new IllegalStateException("zipkin.offHeap.enabled supports only one endpoint");
+      }
+      return ZipkinSpanHandler.newBuilder(offHeapSpanReporter())
+          .alwaysReportSpans(tailSamplingEnabled).build();
+    }
+    if (endpoints.length > 1) return shardingSpanHandler();
+    if (!backpressureEnabled) {
+      return AsyncZipkinSpanHandler.newBuilder(sender())
+          .alwaysReportSpans(tailSamplingEnabled).build();
+    }
+    ReporterBackpressure backpressure = reporterBackpressure();
+    return AsyncZipkinSpanHandler.newBuilder(backpressure.sender(sender()))
+        .queuedMaxSpans(backpressureQueuedMaxSpans)
+        .metrics(backpressure)
+        .alwaysReportSpans(tailSamplingEnabled).build();
+  }
+
+  /**
+   * When true, the sample rate is lowered while the reporter queue fills or Zipkin is slow, so
+   * that requests don't record spans that would be dropped. Needs the default in-memory reporter.
+   */
+  @Value("${zipkin.backpressure.enabled:false}") boolean backpressureEnabled;
+  @Value("${zipkin.backpressure.queuedMaxSpans:10000}") int backpressureQueuedMaxSpans;
+  @Value("${zipkin.backpressure.maxSendLatencyMillis:1000}") long backpressureMaxSendLatency;
+  @Value("${zipkin.backpressure.minRate:0.01}") float backpressureMinRate;
+
+  /** Throttles the samplers in {@link #tracing} and {@link #serverSampler} under pressure */
+  @Bean @Lazy ReporterBackpressure reporterBackpressure() {
+    if (!spoolDirectory.isEmpty() || offHeapEnabled || endpoints.length > 1) {
+      throw new IllegalStateException("zipkin.backpressure.enabled needs one endpoint, "
+          + "and neither zipkin.spool.directory nor zipkin.offHeap.enabled");
+    }
+    // These record every request, so a lower sample rate wouldn't relieve anything but Zipkin
+    if (metricsEnabled || tailSamplingEnabled) {
+      throw new IllegalStateException("zipkin.backpressure.enabled can't be used with "
+          + "zipkin.metrics.enabled or zipkin.tailSampling.enabled, which record every request");
+    }
+    return ReporterBackpressure.newBuilder()
+        .queuedMaxSpans(backpressureQueuedMaxSpans)
+        .maxSendLatency(backpressureMaxSendLatency, TimeUnit.MILLISECONDS)
+        .minRate(backpressureMinRate)
+        .build();
+  }
+
+  /** Returns the sampler, throttled when {@code zipkin.backpressure.enabled} */
+  Sampler throttle(Sampler sampler) {
+    return backpressureEnabled ? reporterBackpressure().throttle(sampler) : sampler;
+  }
+
+  /** Keeps spans on disk until Zipkin accepts them, so they survive outages and restarts */
+  @Bean @Lazy DiskSpoolReporter diskSpoolReporter() {
+    return DiskSpoolReporter.newBuilder(sender(), new File(spoolDirectory)).build();
+  }
+
+  @Value("${zipkin.sharding.virtualNodes:100}") int shardingVirtualNodes;
+  @Value("${zipkin.sharding.failureThreshold:3}") int shardingFailureThreshold;
+  @Value("${zipkin.sharding.retryIntervalMillis:30000}") long shardingRetryInterval;
+
+  /** Sends each trace to one of the endpoints, moving traces off those that fail */
+  @Bean @Lazy ShardingSpanHandler shardingSpanHandler() {
+    ShardingSpanHandler.Builder builder = ShardingSpanHandler.newBuilder()
+        .virtualNodes(shardingVirtualNodes)
+        .failureThreshold(shardingFailureThreshold)
+        .retryInterval(shardingRetryInterval, TimeUnit.MILLISECONDS)
+        .alwaysReportSpans(tailSamplingEnabled);
+    for (String endpoint : endpoints) builder.addShard(endpoint, sender(endpoint));
+    return builder.build();
+  }
+
+  /** When true, spans waiting to be sent are kept encoded in direct buffers instead of the heap */
+  @Value("${zipkin.offHeap.enabled:false}") boolean offHeapEnabled;
+  @Value("${zipkin.offHeap.maxBytes:67108864}") long offHeapMaxBytes;
+  @Value("${zipkin.offHeap.chunkBytes:1048576}") int offHeapChunkBytes;
+
+  /** Keeps the backlog out of the heap, so a slow Zipkin doesn't lengthen garbage collection */
+  @Bean @Lazy OffHeapSpanReporter offHeapSpanReporter() {
+    return OffHeapSpanReporter.newBuilder(sender())
+        .maxBytes(offHeapMaxBytes)
+        .chunkBytes(offHeapChunkBytes)
+        .build();
+  }
+
+  /** When true, finished spans reach {@link #zipkinSpanHandler()} through a lock-free queue */
+  @Value("${zipkin.ringBuffer.enabled:false}") boolean ringBufferEnabled;
+  @Value("${zipkin.ringBuffer.capacity:8192}") int ringBufferCapacity;
+  @Value("${zipkin.ringBuffer.waitStrategy:SLEEP}") WaitStrategy ringBufferWaitStrategy;
+  @Value("${zipkin.ringBuffer.overflow:DROP_NEWEST}") Overflow ringBufferOverflow;
+
+  /** Moves span handling off request threads, which otherwise contend on the reporter's lock */
+  @Bean @Lazy RingBufferSpanHandler ringBufferSpanHandler() {
+    return RingBufferSpanHandler.newBuilder(zipkinSpanHandler())
+        .capacity(ringBufferCapacity)
+        .waitStrategy(ringBufferWaitStrategy)
+        .overflow(ringBufferOverflow)
+        .build();
+  }
+
+  /**
+   * When true, every request is recorded, and unsampled traces are only reported if slow or
+   * failed. The trace sampler's rate becomes the baseline of traces reported regardless.
+   */
+  @Value("${zipkin.tailSampling.enabled:false}") boolean tailSamplingEnabled;
+  @Value("${zipkin.tailSampling.latencyThresholdMillis:500}") long tailSamplingLatencyThreshold;
+  @Value("${zipkin.tailSampling.windowMillis:10000}") long tailSamplingWindow;
+  @Value("${zipkin.tailSampling.maxSpans:100000}") int tailSamplingMaxSpans;
+  @Value("${zipkin.tailSampling.maxTraces:10000}") int tailSamplingMaxTraces;
+
+  /** Keeps the traces head sampling would mostly drop: slow calls and errors */
+  @Bean @Lazy TailSamplingSpanHandler tailSamplingSpanHandler() {
+    return TailSamplingSpanHandler.newBuilder(reportingSpanHandler())
+        .latencyThreshold(tailSamplingLatencyThreshold, TimeUnit.MILLISECONDS)
+        .window(tailSamplingWindow, TimeUnit.MILLISECONDS)
+        .maxSpans(tailSamplingMaxSpans)
+        .maxTraces(tailSamplingMaxTraces)
+        .build();
+  }
+
+  SpanHandler reportingSpanHandler() {
+    return ringBufferEnabled ? ringBufferSpanHandler() : zipkinSpanHandler();
+  }
+
+  /**
+   * When true, the Zipkin sender, reporter thread and any handlers in front of them are created
+   * when the first span finishes, so the application is ready sooner.
+   */
+  @Value("${zipkin.lazy:false}") boolean lazy;
+
+  SpanHandler spanHandler() {
+    if (!lazy) return firstSpanHandler();
+    return new LazySpanHandler(new ObjectFactory<SpanHandler>() {
+      @Override public SpanHandler getObject() {
+        return firstSpanHandler();
+      }
+    });
+  }
+
+  SpanHandler firstSpanHandler() {
+    return tailSamplingEnabled ? tailSamplingSpanHandler() : reportingSpanHandler();
+  }
+
+  /**
+   * When true, every server and client span is counted into rate, error and duration metrics,
+   * served to Prometheus on "/metrics". Traces can then be sampled less without losing metrics.
+   */
+  @Value("${zipkin.metrics.enabled:false}") boolean metricsEnabled;
+  @Value("${zipkin.metrics.maxSeries:1000}") int metricsMaxSeries;
+
+  @Bean @Lazy SpanMetricsHandler spanMetricsHandler() {
+    return new SpanMetricsHandler(metricsMaxSeries);
   }
 
   /** Controls aspects of tracing such as the service name that shows up in the UI */
-  @Bean Tracing tracing(@Value("${zipkin.service:brave-webmvc-example}") String serviceName) {
-    return Tracing.newBuilder()
+  @Bean Tracing tracing(@Value("${zipkin.service:brave-webmvc-example}") String serviceName,
+      @Value("${zipkin.sampler.tracesPerSecond:100}") int tracesPerSecond) {
+    Tracing.Builder builder = Tracing.newBuilder()
         .localServiceName(serviceName)
+        // Above this rate, traces are sampled evenly instead of all recorded and reported
+        .sampler(throttle(RateLimitingSampler.create(tracesPerSecond)))
         .propagationFactory(propagationFactory())
         .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
             .addScopeDecorator(correlationScopeDecorator())
             .build()
-        )
-        .addSpanHandler(zipkinSpanHandler()).build();
+        );
+    // Counts every request, before handlers that only report some of them
+    if (metricsEnabled) builder.addSpanHandler(spanMetricsHandler());
+    builder.addSpanHandler(spanHandler());
+    // Records unsampled requests too, for the tail sampler to decide on, or to count in metrics
+    if (tailSamplingEnabled || metricsEnabled) builder.alwaysSampleLocal();
+    return builder.build();
   }
 
   /** Allows someone to add tags to a span if a trace is in progress. */
@@ -82,13 +288,34 @@ public class TracingConfiguration extends WebMvcConfigurerAdapter {
   }
 
   /** Decides how to name and tag spans. By default they are named the same as the http method. */
-  @Bean HttpTracing httpTracing(Tracing tracing) {
-    return HttpTracing.create(tracing);
+  @Bean HttpTracing httpTracing(Tracing tracing, SamplerFunction<HttpRequest> serverSampler) {
+    return HttpTracing.newBuilder(tracing).serverSampler(serverSampler).build();
+  }
+
+  /**
+   * Overrides the trace sampler for server requests by path: health checks are never sampled, and
+   * the backend api is limited separately. Requests that match no rule use the trace sampler.
+   */
+  @Bean SamplerFunction<HttpRequest> serverSampler(
+      @Value("${zipkin.sampler.api.tracesPerSecond:10}") int apiTracesPerSecond) {
+    return HttpRuleSampler.newBuilder()
+        .putRule(pathStartsWith("/health"), Sampler.NEVER_SAMPLE)
+        .putRule(pathStartsWith("/api"), throttle(RateLimitingSampler.create(apiTracesPerSecond)))
+        .build();
   }
 
   /** adds tracing to any underlying http client calls */
-  @Bean HttpClient httpClient(HttpTracing httpTracing) {
-    return TracingHttpClientBuilder.create(httpTracing).build();
+  @Bean HttpClient httpClient(HttpTracing httpTracing, ConnectionPool connectionPool) {
+    return connectionPool.configure(TracingHttpClientBuilder.create(httpTracing)).build();
+  }
+
+  /** adds tracing to non-blocking http client calls, including the callback's trace context */
+  @Bean CloseableHttpAsyncClient httpAsyncClient(HttpTracing httpTracing,
+      ConnectionPool connectionPool) {
+    CloseableHttpAsyncClient result =
+        connectionPool.configure(TracingHttpAsyncClientBuilder.create(httpTracing)).build();
+    result.start();
+    return result;
   }
 
   @Autowired SpanCustomizingAsyncHandlerInterceptor serverInterceptor;
@@ -0,0 +1,112 @@
+package brave.webmvc;
+
+import brave.baggage.BaggageField;
+import brave.baggage.BaggagePropagation;
+import brave.baggage.BaggagePropagationConfig.SingleBaggageField;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.List;
+
+/**
+ * Propagates one baggage field in the "user_name" header, alongside a trace propagation. This is
+ * the same as a {@link BaggagePropagation} of that field, except that requests that continue a
+ * trace without the header get no baggage holder at all.
+ *
+ * <p>{@link BaggagePropagation} attaches a holder to every context, extracted or new, so that a
+ * value can be set later in the request. Nothing here sets the user name on an incoming request,
+ * so its spans only need one when the header was present. Without the holder, {@link
+ * BaggageField#getValue(TraceContext)} returns null, and injection writes only trace headers. New
+ * traces still get a holder, so that {@link BaggageField#updateValue(TraceContext, String)} works
+ * on them as usual.
+ */
+public final class UserNamePropagation extends Propagation.Factory {
+  static final String KEY_NAME = "user_name";
+
+  /** Returns a factory that adds the {@code userName} field to the given trace propagation. */
+  public static Propagation.Factory create(
+      Propagation.Factory tracePropagation, BaggageField userName) {
+    if (tracePropagation == null) throw new NullPointerException("tracePropagation == null");
+    if (userName == null) throw new NullPointerException("userName == null");
+    return new UserNamePropagation(tracePropagation, userName);
+  }
+
+  final Propagation.Factory trace, baggage;
+
+  UserNamePropagation(Propagation.Factory trace, BaggageField userName) {
+    this.trace = trace;
+    this.baggage = BaggagePropagation.newFactoryBuilder(trace)
+        .add(SingleBaggageField.newBuilder(userName).addKeyName(KEY_NAME).build())
+        .build();
+  }
+
+  @Override public boolean supportsJoin() {
+    return baggage.supportsJoin();
+  }
+
+  @Override public boolean requires128BitTraceId() {
+    return baggage.requires128BitTraceId();
+  }
+
+  @Override @SuppressWarnings("unchecked")
+  public <K> Propagation<K> create(Propagation.KeyFactory<K> keyFactory) {
+    // Only string keys are used by http instrumentation
+    if (keyFactory != Propagation.KeyFactory.STRING) return baggage.create(keyFactory);
+    return (Propagation<K>) new UserNamePropagationImpl(trace.get(), baggage.get());
+  }
+
+  /**
+   * Skips the holder for spans of a trace continued without a user name. Those have a parent, or
+   * are joined to the caller's span. New traces have neither, so they always get one.
+   */
+  @Override public TraceContext decorate(TraceContext context) {
+    if (context.extra().isEmpty() && (context.parentIdAsLong() != 0L || context.shared())) {
+      return context;
+    }
+    return baggage.decorate(context);
+  }
+
+  @Override public String toString() {
+    return "UserNamePropagation{" + trace + "}";
+  }
+
+  static final class UserNamePropagationImpl implements Propagation<String> {
+    final Propagation<String> trace, baggage;
+
+    UserNamePropagationImpl(Propagation<String> trace, Propagation<String> baggage) {
+      this.trace = trace;
+      this.baggage = baggage;
+    }
+
+    @Override public List<String> keys() {
+      return baggage.keys();
+    }
+
+    @Override public <R> TraceContext.Injector<R> injector(Setter<R, String> setter) {
+      if (setter == null) throw new NullPointerException("setter == null");
+      final TraceContext.Injector<R> traceInjector = trace.injector(setter);
+      final TraceContext.Injector<R> baggageInjector = baggage.injector(setter);
+      return new TraceContext.Injector<R>() {
+        @Override public void inject(TraceContext context, R request) {
+          if (context.extra().isEmpty()) {
+            traceInjector.inject(context, request);
+          } else {
+            baggageInjector.inject(context, request);
+          }
+        }
+      };
+    }
+
+    @Override public <R> TraceContext.Extractor<R> extractor(final Getter<R, String> getter) {
+      if (getter == null) throw new NullPointerException("getter == null");
+      final TraceContext.Extractor<R> traceExtractor = trace.extractor(getter);
+      final TraceContext.Extractor<R> baggageExtractor = baggage.extractor(getter);
+      return new TraceContext.Extractor<R>() {
+        @Override public TraceContextOrSamplingFlags extract(R request) {
+          if (getter.get(request, KEY_NAME) == null) return traceExtractor.extract(request);
+          return baggageExtractor.extract(request);
+        }
+      };
+    }
+  }
+}
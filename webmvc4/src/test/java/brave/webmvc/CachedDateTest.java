@@ -0,0 +1,71 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachedDateTest {
+  final CachedDate date = new CachedDate();
+
+  @Test public void writesDateAndUserName() throws IOException {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    date.writeTo("romeo", null, response);
+
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertTrue(response.getContentAsString().endsWith(" romeo"));
+    assertEquals(response.getContentAsByteArray().length, response.getContentLength());
+    assertTrue(response.getHeader("ETag").endsWith("-726f6d656f\"")); // hex of "romeo"
+    assertEquals("user_name", response.getHeader("Vary"));
+  }
+
+  @Test public void notModified() throws IOException {
+    MockHttpServletResponse first = new MockHttpServletResponse();
+    MockHttpServletResponse second = new MockHttpServletResponse();
+    // The ETag changes with the second, so retry if a request crossed a boundary
+    for (int i = 0; i < 3; i++) {
+      first = new MockHttpServletResponse();
+      date.writeTo("romeo", null, first);
+      second = new MockHttpServletResponse();
+      date.writeTo("romeo", first.getHeader("ETag"), second);
+      if (first.getHeader("ETag").equals(second.getHeader("ETag"))) break;
+    }
+
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.getStatus());
+    assertEquals(0, second.getContentAsByteArray().length);
+    assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+  }
+
+  @Test public void modifiedWhenETagDiffers() throws IOException {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    date.writeTo("romeo", "W/\"0-726f6d656f\"", response);
+
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertTrue(response.getContentAsString().endsWith(" romeo"));
+  }
+
+  /** "Aa" and "BB" have the same {@link String#hashCode()} */
+  @Test public void userNamesWithSameHashCodeHaveDifferentETags() throws IOException {
+    MockHttpServletResponse aa = new MockHttpServletResponse();
+    date.writeTo("Aa", null, aa);
+    MockHttpServletResponse bb = new MockHttpServletResponse();
+    date.writeTo("BB", null, bb);
+
+    assertFalse(userNamePart(aa.getHeader("ETag")).equals(userNamePart(bb.getHeader("ETag"))));
+  }
+
+  @Test public void matches() {
+    assertTrue(CachedDate.matches("*", "W/\"1\""));
+    assertTrue(CachedDate.matches("\"1\"", "W/\"1\""));
+    assertTrue(CachedDate.matches("W/\"0\", W/\"1\"", "W/\"1\""));
+    assertFalse(CachedDate.matches("W/\"0\"", "W/\"1\""));
+  }
+
+  static String userNamePart(String etag) {
+    return etag.substring(etag.indexOf('-'));
+  }
+}
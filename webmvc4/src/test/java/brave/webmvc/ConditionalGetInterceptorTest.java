@@ -0,0 +1,91 @@
+package brave.webmvc;
+
+import brave.baggage.BaggageField;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.web.client.RestTemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Runs the interceptor against a stub backend that answers with a fixed ETag. */
+public class ConditionalGetInterceptorTest {
+  static final String ETAG = "W/\"1\"";
+
+  /** The If-None-Match header of each request, or "" when absent */
+  final BlockingQueue<String> ifNoneMatch = new LinkedBlockingQueue<>();
+  volatile String cacheControl = "max-age=60";
+  HttpServer server;
+  String url;
+  RestTemplate restTemplate = new RestTemplate();
+
+  @Before public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/api", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("If-None-Match");
+        ifNoneMatch.add(header != null ? header : "");
+        exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (ETAG.equals(header)) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          byte[] body = "hello".getBytes("UTF-8");
+          exchange.sendResponseHeaders(200, body.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(body);
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/api";
+    restTemplate.setInterceptors(Collections.<ClientHttpRequestInterceptor>singletonList(
+        new ConditionalGetInterceptor(BaggageField.create("user_name"), 10)));
+  }
+
+  @After public void close() {
+    server.stop(0);
+  }
+
+  @Test public void reusesFreshResponse() {
+    assertEquals("hello", restTemplate.getForObject(url, String.class));
+    assertEquals("hello", restTemplate.getForObject(url, String.class));
+
+    assertEquals(1, ifNoneMatch.size());
+  }
+
+  @Test public void revalidatesStaleResponse() throws InterruptedException {
+    cacheControl = "max-age=0";
+
+    assertEquals("hello", restTemplate.getForObject(url, String.class));
+    assertEquals("", ifNoneMatch.take());
+
+    // The 304 has no body, so the interceptor returns the cached one as a 200
+    assertEquals("hello", restTemplate.getForObject(url, String.class));
+    assertEquals(ETAG, ifNoneMatch.take());
+  }
+
+  /** "no-cache" allows storing a response, but it must be revalidated before each reuse */
+  @Test public void revalidatesNoCache() throws InterruptedException {
+    cacheControl = "no-cache";
+
+    restTemplate.getForObject(url, String.class);
+    restTemplate.getForObject(url, String.class);
+
+    assertEquals("", ifNoneMatch.take());
+    assertEquals(ETAG, ifNoneMatch.take());
+    assertNull(ifNoneMatch.poll());
+  }
+}
@@ -0,0 +1,200 @@
+package brave.webmvc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.okhttp3.OkHttpSender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DiskSpoolReporterTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Accepts spans unless {@link #failing}, in which case it answers 503 like an overloaded one */
+  final AtomicBoolean failing = new AtomicBoolean();
+  final AtomicInteger failures = new AtomicInteger();
+  final Set<String> received =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  HttpServer collector;
+  OkHttpSender sender;
+  File directory;
+  DiskSpoolReporter reporter;
+
+  @Before public void start() throws IOException {
+    collector = HttpServer.create(new InetSocketAddress(0), 0);
+    collector.createContext("/api/v2/spans", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        if (failing.get()) {
+          failures.incrementAndGet();
+          exchange.sendResponseHeaders(503, -1);
+        } else {
+          for (Span span : SpanBytesDecoder.JSON_V2.decodeList(body)) received.add(span.id());
+          exchange.sendResponseHeaders(202, -1);
+        }
+        exchange.close();
+      }
+    });
+    collector.start();
+    sender = OkHttpSender.create(
+        "http://localhost:" + collector.getAddress().getPort() + "/api/v2/spans");
+    directory = new File(folder.getRoot(), "spool");
+  }
+
+  @After public void close() {
+    if (reporter != null) reporter.close();
+    sender.close();
+    collector.stop(0);
+  }
+
+  DiskSpoolReporter newReporter() {
+    return DiskSpoolReporter.newBuilder(sender, directory)
+        .segmentBytes(1024)
+        .messageTimeout(0, TimeUnit.MILLISECONDS)
+        .maxBackoff(50, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  @Test public void drainsToCollector() throws Exception {
+    reporter = newReporter();
+    reportSpans(1, 100);
+
+    awaitReceived(100);
+    assertEquals(0, reporter.spansDropped.get());
+  }
+
+  @Test public void spoolsWhileCollectorFails() throws Exception {
+    failing.set(true);
+    reporter = newReporter();
+    reportSpans(1, 100); // over several 1KiB segments
+
+    await(new Condition() {
+      @Override public boolean met() {
+        return failures.get() > 1;
+      }
+    });
+    assertEquals(0, received.size());
+
+    failing.set(false);
+    awaitReceived(100);
+    assertEquals(0, reporter.spansDropped.get());
+  }
+
+  @Test public void replaysAfterRestart() throws Exception {
+    failing.set(true);
+    reporter = newReporter();
+    reportSpans(1, 20);
+    reporter.close();
+    assertTrue(spoolFiles().length > 0);
+
+    failing.set(false);
+    reporter = newReporter();
+    reportSpans(21, 40);
+
+    awaitReceived(40);
+  }
+
+  /** Spans spooled under a larger limit than the current sender's are dropped, not retried */
+  @Test public void dropsSpooledSpansOverMessageMaxBytes() throws Exception {
+    failing.set(true);
+    reporter = newReporter();
+    reportSpans(1, 2);
+    reporter.report(Span.newBuilder().traceId(1L, 3).id(3).name("get")
+        .putTag("large", String.format("%400s", "").replace(' ', 'a')).build());
+    reportSpans(4, 5);
+    reporter.close();
+
+    failing.set(false);
+    sender.close();
+    sender = OkHttpSender.newBuilder()
+        .endpoint("http://localhost:" + collector.getAddress().getPort() + "/api/v2/spans")
+        .messageMaxBytes(300)
+        .build();
+    reporter = newReporter();
+
+    awaitReceived(4);
+    assertEquals(1, reporter.spansDropped.get());
+  }
+
+  @Test public void deletesSentSegments() throws Exception {
+    reporter = newReporter();
+    reportSpans(1, 100);
+    awaitReceived(100);
+
+    // the active segment, and maybe the spare the drainer prepared for after it
+    await(new Condition() {
+      @Override public boolean met() {
+        return spoolFiles().length <= 2;
+      }
+    });
+  }
+
+  @Test public void ignoresStrayFiles() throws Exception {
+    assertTrue(directory.mkdirs());
+    File stray = new File(directory, "notes.spool");
+    assertTrue(stray.createNewFile());
+
+    reporter = newReporter();
+    reportSpans(1, 10);
+
+    awaitReceived(10);
+    assertTrue(stray.exists());
+  }
+
+  void reportSpans(int from, int to) {
+    for (int i = from; i <= to; i++) {
+      reporter.report(Span.newBuilder().traceId(1L, i).id(i).name("get").build());
+    }
+  }
+
+  File[] spoolFiles() {
+    File[] files = directory.listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  void awaitReceived(final int count) throws InterruptedException {
+    await(new Condition() {
+      @Override public boolean met() {
+        return received.size() == count;
+      }
+    });
+  }
+
+  interface Condition {
+    boolean met();
+  }
+
+  static void await(Condition condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.met()) {
+      if (System.nanoTime() > deadline) throw new AssertionError("timed out");
+      Thread.sleep(10);
+    }
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) != -1; ) out.write(buffer, 0, read);
+    return out.toByteArray();
+  }
+}
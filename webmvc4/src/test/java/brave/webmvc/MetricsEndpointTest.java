@@ -0,0 +1,41 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsEndpointTest {
+  final SpanMetricsHandler handler = new SpanMetricsHandler(10);
+  final MetricsEndpoint endpoint = new MetricsEndpoint();
+  final MockHttpServletResponse response = new MockHttpServletResponse();
+
+  @Before public void setup() {
+    endpoint.spanMetricsHandler = new ObjectFactory<SpanMetricsHandler>() {
+      @Override public SpanMetricsHandler getObject() {
+        if (!endpoint.enabled) throw new AssertionError("resolved the handler when disabled");
+        return handler;
+      }
+    };
+  }
+
+  @Test public void notFoundWhenDisabled() throws IOException {
+    endpoint.metrics(response);
+
+    assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+  }
+
+  @Test public void writesPrometheusText() throws IOException {
+    endpoint.enabled = true;
+    endpoint.metrics(response);
+
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertTrue(response.getContentType(), response.getContentType().startsWith("text/plain"));
+    assertTrue(response.getContentAsString().contains("span_metrics_dropped_total 0\n"));
+  }
+}
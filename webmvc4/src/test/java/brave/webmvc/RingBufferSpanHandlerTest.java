@@ -0,0 +1,127 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.webmvc.RingBufferSpanHandler.Overflow;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferSpanHandlerTest {
+  /** Names of spans the consumer handed over, in order */
+  final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+  /** The delegate blocks until released, so the queue can be filled behind it */
+  final CountDownLatch entered = new CountDownLatch(1), release = new CountDownLatch(1);
+  final SpanHandler delegate = new SpanHandler() {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      delivered.add(span.name());
+      return true;
+    }
+  };
+  RingBufferSpanHandler handler;
+
+  @After public void close() {
+    release.countDown();
+    if (handler != null) handler.close();
+  }
+
+  @Test public void capacityRoundsUpToPowerOfTwo() {
+    handler = RingBufferSpanHandler.newBuilder(delegate).capacity(5).build();
+
+    assertEquals(8, handler.getCapacity());
+  }
+
+  /** Several laps around the array, each filling it */
+  @Test public void wrapsAround() throws InterruptedException {
+    release.countDown();
+    handler = RingBufferSpanHandler.newBuilder(delegate).capacity(4).build();
+
+    for (int lap = 0; lap < 5; lap++) {
+      for (int i = 0; i < 4; i++) report(lap + "-" + i);
+      for (int i = 0; i < 4; i++) assertEquals(lap + "-" + i, take());
+    }
+    assertEquals(20, handler.getEnqueuedCount());
+    assertEquals(0, handler.getDroppedCount());
+  }
+
+  @Test public void dropNewest() throws InterruptedException {
+    handler = RingBufferSpanHandler.newBuilder(delegate)
+        .capacity(2)
+        .overflow(Overflow.DROP_NEWEST)
+        .build();
+    fillBehindBlockedConsumer();
+
+    report("4");
+    assertEquals(1, handler.getDroppedCount());
+
+    release.countDown();
+    assertEquals("1", take());
+    assertEquals("2", take());
+    assertEquals("3", take());
+    assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test public void dropOldest() throws InterruptedException {
+    handler = RingBufferSpanHandler.newBuilder(delegate)
+        .capacity(2)
+        .overflow(Overflow.DROP_OLDEST)
+        .build();
+    fillBehindBlockedConsumer();
+
+    report("4");
+    assertEquals(1, handler.getDroppedCount());
+
+    release.countDown();
+    assertEquals("1", take());
+    assertEquals("3", take());
+    assertEquals("4", take());
+    assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test public void closeHandsOverQueuedSpans() throws InterruptedException {
+    handler = RingBufferSpanHandler.newBuilder(delegate).capacity(2).build();
+    fillBehindBlockedConsumer();
+
+    release.countDown();
+    handler.close();
+
+    assertEquals(3, delivered.size());
+  }
+
+  /** Span "1" is held by the delegate, and "2" and "3" fill both slots of the queue. */
+  void fillBehindBlockedConsumer() throws InterruptedException {
+    report("1");
+    assertTrue(entered.await(1, TimeUnit.SECONDS));
+    report("2");
+    report("3");
+    assertEquals(2, handler.getSize());
+    assertEquals(0, handler.getDroppedCount());
+  }
+
+  void report(String name) {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+    MutableSpan span = new MutableSpan(context, null);
+    span.name(name);
+    handler.end(context, span, SpanHandler.Cause.FINISHED);
+  }
+
+  String take() throws InterruptedException {
+    String result = delivered.poll(1, TimeUnit.SECONDS);
+    if (result == null) throw new AssertionError("timed out");
+    return result;
+  }
+}
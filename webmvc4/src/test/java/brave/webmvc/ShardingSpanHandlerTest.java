@@ -0,0 +1,194 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.okhttp3.OkHttpSender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShardingSpanHandlerTest {
+  static final int SHARDS = 3;
+  static final long RETRY_INTERVAL_MILLIS = 200;
+
+  final List<StubCollector> collectors = new ArrayList<>();
+  ShardingSpanHandler handler;
+
+  @Before public void start() throws IOException {
+    ShardingSpanHandler.Builder builder = ShardingSpanHandler.newBuilder()
+        .failureThreshold(1)
+        .retryInterval(RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < SHARDS; i++) {
+      StubCollector collector = new StubCollector();
+      collectors.add(collector);
+      builder.addShard(collector.endpoint, OkHttpSender.create(collector.endpoint));
+    }
+    handler = builder.build();
+  }
+
+  @After public void close() {
+    handler.close();
+    for (StubCollector collector : collectors) collector.server.stop(0);
+  }
+
+  @Test public void traceStaysOnOneShard() {
+    for (long traceId = 1; traceId <= 100; traceId++) {
+      for (long spanId = 1; spanId <= 3; spanId++) report(traceId, spanId);
+    }
+    flush();
+
+    for (long traceId = 1; traceId <= 100; traceId++) {
+      String hexTraceId = context(traceId, 1).traceIdString();
+      int spans = 0, collectorsWithTrace = 0;
+      for (StubCollector collector : collectors) {
+        AtomicInteger count = collector.spansByTraceId.get(hexTraceId);
+        if (count == null) continue;
+        spans += count.get();
+        collectorsWithTrace++;
+      }
+      assertEquals(3, spans);
+      assertEquals(1, collectorsWithTrace);
+    }
+    int collectorsUsed = 0;
+    for (StubCollector collector : collectors) {
+      if (!collector.spansByTraceId.isEmpty()) collectorsUsed++;
+    }
+    assertTrue("traces weren't spread over collectors", collectorsUsed > 1);
+  }
+
+  @Test public void movesTrafficOffFailingShard() {
+    StubCollector failing = collectors.get(0);
+    ShardingSpanHandler.Shard shard = handler.shards[0];
+    long traceId = traceIdOwnedBy(shard, 1);
+
+    failing.failing = true;
+    report(traceId, 1);
+    flush();
+    assertFalse(shard.isHealthy());
+
+    long movedTraceId = traceIdOwnedBy(shard, traceId + 1);
+    assertNotSame(shard, handler.shard(movedTraceId));
+    report(movedTraceId, 1);
+    flush();
+
+    assertEquals(0, failing.spansByTraceId.size());
+    assertEquals(1, spansReceived(context(movedTraceId, 1).traceIdString()));
+  }
+
+  @Test public void returnsTrafficAfterRetryInterval() throws InterruptedException {
+    StubCollector failing = collectors.get(0);
+    ShardingSpanHandler.Shard shard = handler.shards[0];
+    long traceId = traceIdOwnedBy(shard, 1);
+
+    failing.failing = true;
+    report(traceId, 1);
+    flush();
+    assertNotSame(shard, handler.shard(traceId));
+
+    failing.failing = false;
+    Thread.sleep(RETRY_INTERVAL_MILLIS * 2);
+    assertSame(shard, handler.shard(traceId));
+    report(traceId, 2);
+    flush();
+
+    assertTrue(shard.healthy);
+    assertEquals(1, failing.spansByTraceId.get(context(traceId, 2).traceIdString()).get());
+  }
+
+  /** Returns the first trace ID from the given one that the ring places on the shard. */
+  long traceIdOwnedBy(ShardingSpanHandler.Shard shard, long from) {
+    for (long traceId = from; ; traceId++) {
+      if (handler.shard(traceId) == shard) return traceId;
+    }
+  }
+
+  void report(long traceId, long spanId) {
+    TraceContext context = context(traceId, spanId);
+    MutableSpan span = new MutableSpan(context, null);
+    span.name("get");
+    span.startTimestamp(1L);
+    span.finishTimestamp(2L);
+    handler.end(context, span, Cause.FINISHED);
+  }
+
+  /** Sends what's queued now, instead of waiting for each shard's message timeout */
+  void flush() {
+    for (ShardingSpanHandler.Shard shard : handler.shards) shard.handler.flush();
+  }
+
+  int spansReceived(String hexTraceId) {
+    int result = 0;
+    for (StubCollector collector : collectors) {
+      AtomicInteger count = collector.spansByTraceId.get(hexTraceId);
+      if (count != null) result += count.get();
+    }
+    return result;
+  }
+
+  static TraceContext context(long traceId, long spanId) {
+    return TraceContext.newBuilder().traceId(traceId).spanId(spanId).sampled(true).build();
+  }
+
+  /** Counts spans by trace ID, unless {@link #failing}, when it answers 503 instead */
+  static final class StubCollector {
+    final ConcurrentMap<String, AtomicInteger> spansByTraceId = new ConcurrentHashMap<>();
+    final HttpServer server;
+    final String endpoint;
+    volatile boolean failing;
+
+    StubCollector() throws IOException {
+      server = HttpServer.create(new InetSocketAddress(0), 0);
+      server.createContext("/api/v2/spans", new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+          byte[] body = readAll(exchange.getRequestBody());
+          if (failing) {
+            exchange.sendResponseHeaders(503, -1);
+          } else {
+            for (Span span : SpanBytesDecoder.JSON_V2.decodeList(body)) {
+              AtomicInteger count = spansByTraceId.get(span.traceId());
+              if (count == null) {
+                count = new AtomicInteger();
+                AtomicInteger existing = spansByTraceId.putIfAbsent(span.traceId(), count);
+                if (existing != null) count = existing;
+              }
+              count.incrementAndGet();
+            }
+            exchange.sendResponseHeaders(202, -1);
+          }
+          exchange.close();
+        }
+      });
+      server.start();
+      endpoint = "http://localhost:" + server.getAddress().getPort() + "/api/v2/spans";
+    }
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) != -1; ) out.write(buffer, 0, read);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,126 @@
+package brave.webmvc;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+  final SingleFlight<String, String> singleFlight =
+      new SingleFlight<>(100, TimeUnit.MILLISECONDS);
+  final ExecutorService executor = Executors.newCachedThreadPool();
+  /** The first call blocks until released, so others arrive while it is in flight */
+  final CountDownLatch entered = new CountDownLatch(1), release = new CountDownLatch(1);
+  final AtomicInteger calls = new AtomicInteger();
+
+  @After public void close() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test public void sharesInFlightCall() throws Exception {
+    Future<SingleFlight.Result<String>> first = executeInBackground(blockingCall("romeo"));
+    assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+    Future<SingleFlight.Result<String>> second = executeInBackground(blockingCall("juliet"));
+    Thread.sleep(20); // let the second caller start waiting
+    release.countDown();
+
+    assertEquals("romeo", first.get(1, TimeUnit.SECONDS).value);
+    assertFalse(first.get().shared);
+    assertEquals("romeo", second.get(1, TimeUnit.SECONDS).value);
+    assertTrue(second.get().shared);
+    assertEquals(1, calls.get());
+  }
+
+  @Test public void propagatesFailureToWaiters() throws Exception {
+    final IOException failure = new IOException("backend down");
+    Future<SingleFlight.Result<String>> first = executeInBackground(new Callable<String>() {
+      @Override public String call() throws Exception {
+        entered.countDown();
+        release.await();
+        throw failure;
+      }
+    });
+    assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+    Future<SingleFlight.Result<String>> second = executeInBackground(blockingCall("juliet"));
+    Thread.sleep(20); // let the second caller start waiting
+    release.countDown();
+
+    assertFailsWith(failure, first);
+    assertFailsWith(failure, second);
+  }
+
+  /** A waiter gives up after the timeout, and later callers don't join the stuck call */
+  @Test public void timesOutAndForgetsCall() throws Exception {
+    executeInBackground(blockingCall("stuck"));
+    assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+    try {
+      singleFlight.execute("key", blockingCall("juliet"));
+      fail("expected a timeout");
+    } catch (TimeoutException expected) {
+    }
+
+    SingleFlight.Result<String> result = singleFlight.execute("key", new Callable<String>() {
+      @Override public String call() {
+        return "fresh";
+      }
+    });
+    assertEquals("fresh", result.value);
+    assertFalse(result.shared);
+  }
+
+  @Test public void callsAgainAfterCompletion() throws Exception {
+    release.countDown();
+    singleFlight.execute("key", blockingCall("romeo"));
+    SingleFlight.Result<String> result = singleFlight.execute("key", blockingCall("juliet"));
+
+    assertEquals("juliet", result.value);
+    assertFalse(result.shared);
+    assertEquals(2, calls.get());
+  }
+
+  Callable<String> blockingCall(final String value) {
+    return new Callable<String>() {
+      @Override public String call() throws InterruptedException {
+        calls.incrementAndGet();
+        entered.countDown();
+        release.await();
+        return value;
+      }
+    };
+  }
+
+  Future<SingleFlight.Result<String>> executeInBackground(final Callable<String> callable) {
+    return executor.submit(new Callable<SingleFlight.Result<String>>() {
+      @Override public SingleFlight.Result<String> call() throws Exception {
+        return singleFlight.execute("key", callable);
+      }
+    });
+  }
+
+  static void assertFailsWith(Exception expected, Future<?> future) throws Exception {
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      fail("expected " + expected);
+    } catch (ExecutionException e) {
+      assertSame(expected, e.getCause());
+    }
+  }
+}
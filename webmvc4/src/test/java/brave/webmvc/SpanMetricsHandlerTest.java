@@ -0,0 +1,116 @@
+package brave.webmvc;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpanMetricsHandlerTest {
+  static final String LABELS =
+      "service=\"frontend\",kind=\"server\",route=\"/api\",method=\"GET\",status=\"2xx\"";
+  static final TraceContext CONTEXT =
+      TraceContext.newBuilder().traceId(1L).spanId(1L).sampled(false).build();
+
+  SpanMetricsHandler handler = new SpanMetricsHandler(10);
+
+  @Test public void countsServerSpan() throws IOException {
+    handler.end(CONTEXT, span(Kind.SERVER, 20000L), Cause.FINISHED);
+
+    String metrics = metrics();
+    assertTrue(metrics, metrics.contains(
+        "span_duration_seconds_bucket{" + LABELS + ",le=\"0.01\"} 0\n"));
+    assertTrue(metrics, metrics.contains(
+        "span_duration_seconds_bucket{" + LABELS + ",le=\"0.025\"} 1\n"));
+    assertTrue(metrics, metrics.contains(
+        "span_duration_seconds_bucket{" + LABELS + ",le=\"+Inf\"} 1\n"));
+    assertTrue(metrics, metrics.contains("span_duration_seconds_sum{" + LABELS + "} 0.02\n"));
+    assertTrue(metrics, metrics.contains("span_duration_seconds_count{" + LABELS + "} 1\n"));
+    assertTrue(metrics, metrics.contains("span_errors_total{" + LABELS + "} 0\n"));
+  }
+
+  @Test public void ignoresLocalSpans() throws IOException {
+    handler.end(CONTEXT, span(null, 20000L), Cause.FINISHED);
+
+    assertFalse(metrics().contains("span_duration_seconds_count{"));
+  }
+
+  @Test public void countsErrors() throws IOException {
+    MutableSpan serverError = span(Kind.SERVER, 20000L);
+    serverError.tag("http.status_code", "503");
+    handler.end(CONTEXT, serverError, Cause.FINISHED);
+    MutableSpan exception = span(Kind.SERVER, 20000L);
+    exception.error(new IllegalStateException());
+    handler.end(CONTEXT, exception, Cause.FINISHED);
+
+    String metrics = metrics();
+    assertTrue(metrics, metrics.contains(
+        "span_errors_total{" + LABELS.replace("2xx", "503") + "} 1\n"));
+    // Failed without a response, so no status
+    assertTrue(metrics, metrics.contains(
+        "span_errors_total{" + LABELS.replace("2xx", "") + "} 1\n"));
+  }
+
+  @Test public void dropsSpansOfNewSeriesOverMax() throws IOException {
+    handler = new SpanMetricsHandler(1);
+    handler.end(CONTEXT, span(Kind.SERVER, 20000L), Cause.FINISHED);
+    handler.end(CONTEXT, span(Kind.CLIENT, 20000L), Cause.FINISHED);
+
+    assertEquals(1, handler.series.size());
+    assertTrue(metrics().contains("span_metrics_dropped_total 1\n"));
+  }
+
+  /** Threads racing to create and count into the same series lose nothing */
+  @Test public void countsConcurrently() throws Exception {
+    final int threads = 4, spansPerThread = 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> started = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < spansPerThread; j++) {
+            handler.end(CONTEXT, span(Kind.SERVER, 20000L), Cause.FINISHED);
+          }
+        }
+      });
+      thread.start();
+      started.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : started) thread.join();
+
+    assertEquals(1, handler.series.size());
+    assertTrue(metrics().contains(
+        "span_duration_seconds_count{" + LABELS + "} " + threads * spansPerThread + "\n"));
+  }
+
+  String metrics() throws IOException {
+    StringBuilder result = new StringBuilder();
+    handler.writeTo(result);
+    return result.toString();
+  }
+
+  static MutableSpan span(Kind kind, long durationMicros) {
+    MutableSpan span = new MutableSpan(CONTEXT, null);
+    if (kind != null) span.kind(kind);
+    span.localServiceName("frontend");
+    span.name("get /api");
+    span.tag("http.method", "GET");
+    span.startTimestamp(1L);
+    span.finishTimestamp(1L + durationMicros);
+    return span;
+  }
+}
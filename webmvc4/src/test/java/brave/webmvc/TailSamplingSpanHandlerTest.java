@@ -0,0 +1,122 @@
+package brave.webmvc;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TailSamplingSpanHandlerTest {
+  static final long THRESHOLD_MICROS = TimeUnit.MILLISECONDS.toMicros(100);
+
+  /** Names of spans handed to the delegate, in order */
+  final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+  final SpanHandler delegate = new SpanHandler() {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      delivered.add(span.name());
+      return true;
+    }
+  };
+  TailSamplingSpanHandler handler = TailSamplingSpanHandler.newBuilder(delegate)
+      .latencyThreshold(THRESHOLD_MICROS, TimeUnit.MICROSECONDS)
+      .build();
+
+  @Test public void dropsFastSuccessfulTrace() {
+    end(child(1L, 2L), "child", 10L);
+    end(root(1L), "root", 20L);
+
+    assertEquals(Collections.emptyList(), delivered);
+    assertEquals(1, handler.getDroppedCount());
+    assertEquals(0, handler.getBufferedSpanCount());
+  }
+
+  @Test public void keepsTraceWithError() {
+    MutableSpan child = span(child(1L, 2L), "child", 10L);
+    child.error(new IllegalStateException());
+    handler.end(child(1L, 2L), child, Cause.FINISHED);
+
+    assertEquals(Collections.emptyList(), delivered); // held until the root finishes
+
+    end(root(1L), "root", 20L);
+
+    assertEquals(Arrays.asList("child", "root"), delivered);
+    assertEquals(1, handler.getKeptCount());
+  }
+
+  @Test public void keepsTraceWithServerErrorStatus() {
+    MutableSpan root = span(root(1L), "root", 20L);
+    root.tag("http.status_code", "503");
+    handler.end(root(1L), root, Cause.FINISHED);
+
+    assertEquals(Arrays.asList("root"), delivered);
+  }
+
+  @Test public void keepsSlowTrace() {
+    end(child(1L, 2L), "child", 10L);
+    end(root(1L), "root", THRESHOLD_MICROS);
+
+    assertEquals(Arrays.asList("child", "root"), delivered);
+    assertEquals(1, handler.getKeptCount());
+  }
+
+  @Test public void spanFinishingAfterRootFollowsDecision() {
+    end(root(1L), "slow", THRESHOLD_MICROS);
+    end(child(1L, 2L), "late", 10L);
+    end(root(3L), "fast", 10L);
+    end(child(3L, 4L), "late-dropped", 10L);
+
+    assertEquals(Arrays.asList("slow", "late"), delivered);
+  }
+
+  @Test public void handsOverSampledSpansImmediately() {
+    TraceContext context = root(1L).toBuilder().sampled(true).build();
+    handler.end(context, span(context, "sampled", 10L), Cause.FINISHED);
+
+    assertEquals(Arrays.asList("sampled"), delivered);
+    assertEquals(1, handler.getSampledSpanCount());
+    assertEquals(0, handler.getTraceCount());
+  }
+
+  /** When full, the oldest trace is decided on the spans it has so far */
+  @Test public void evictsOldestTrace() {
+    handler = TailSamplingSpanHandler.newBuilder(delegate)
+        .latencyThreshold(THRESHOLD_MICROS, TimeUnit.MICROSECONDS)
+        .maxTraces(1)
+        .build();
+    end(child(1L, 2L), "slow", THRESHOLD_MICROS);
+    end(child(3L, 4L), "fast", 10L);
+
+    assertEquals(Arrays.asList("slow"), delivered);
+    assertEquals(1, handler.getEvictionCount());
+    assertEquals(1, handler.getTraceCount());
+  }
+
+  void end(TraceContext context, String name, long durationMicros) {
+    handler.end(context, span(context, name, durationMicros), Cause.FINISHED);
+  }
+
+  static MutableSpan span(TraceContext context, String name, long durationMicros) {
+    MutableSpan span = new MutableSpan(context, null);
+    span.name(name);
+    span.startTimestamp(1L);
+    span.finishTimestamp(1L + durationMicros);
+    return span;
+  }
+
+  /** An unsampled local root, whose span ID is its trace ID */
+  static TraceContext root(long traceId) {
+    return TraceContext.newBuilder().traceId(traceId).spanId(traceId).sampled(false).build();
+  }
+
+  static TraceContext child(long traceId, long spanId) {
+    return TraceContext.newBuilder().traceId(traceId).parentId(traceId).spanId(spanId)
+        .sampled(false).build();
+  }
+}
@@ -0,0 +1,87 @@
+package brave.webmvc;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TinyLfuCacheTest {
+  /** A window of one entry, and a main region of 99 */
+  TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 1, TimeUnit.HOURS);
+
+  @Test public void getsWhatWasPut() {
+    cache.put("romeo", "montague");
+
+    assertEquals("montague", cache.get("romeo"));
+    assertNull(cache.get("juliet"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test public void expiresAfterEntryTtl() throws InterruptedException {
+    cache.put("romeo", "montague", 1, TimeUnit.MILLISECONDS);
+    Thread.sleep(5);
+
+    assertNull(cache.get("romeo"));
+    assertEquals(1, cache.getExpirationCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test public void entryTtlIsCappedByCacheTtl() throws InterruptedException {
+    cache = new TinyLfuCache<>(100, 1, TimeUnit.MILLISECONDS);
+    cache.put("romeo", "montague", 1, TimeUnit.HOURS);
+    Thread.sleep(5);
+
+    assertNull(cache.get("romeo"));
+  }
+
+  @Test public void doesntCacheWithoutTtl() {
+    cache.put("romeo", "montague", 0, TimeUnit.MILLISECONDS);
+    assertNull(cache.get("romeo"));
+
+    cache = new TinyLfuCache<>(100, 0, TimeUnit.MILLISECONDS);
+    cache.put("romeo", "montague");
+    assertNull(cache.get("romeo"));
+  }
+
+  /** One-off keys leaving the window don't displace keys requested more often */
+  @Test public void rejectsRarelyRequestedCandidate() {
+    fillMainWithPopularKeys();
+
+    cache.put("one-off", "1"); // pushes "last" out of the window
+    cache.put("another", "2"); // pushes "one-off" out of the window
+
+    assertNull(cache.get("last"));
+    assertNull(cache.get("one-off"));
+    assertEquals("0", cache.get("0"));
+    assertEquals(2, cache.getEvictionCount());
+    assertEquals(100, cache.getSize());
+  }
+
+  /** A key requested more often than the main region's least recently used one replaces it */
+  @Test public void admitsFrequentlyRequestedCandidate() {
+    fillMainWithPopularKeys();
+    // Misses still count as requests. Well over three, so sketch collisions can't tie it.
+    for (int i = 0; i < 10; i++) cache.get("frequent");
+
+    cache.put("frequent", "f"); // pushes "last" out of the window, which isn't admitted
+    cache.put("another", "2"); // pushes "frequent" out of the window
+
+    assertEquals("f", cache.get("frequent"));
+    assertNull(cache.get("0")); // the least recently used
+    assertEquals(2, cache.getEvictionCount());
+  }
+
+  /**
+   * Puts keys "0" to "98" into the main region, each requested three times, leaving "last", never
+   * requested, in the window.
+   */
+  void fillMainWithPopularKeys() {
+    for (int i = 0; i < 99; i++) cache.put(Integer.toString(i), Integer.toString(i));
+    cache.put("last", "last"); // pushes "98" out of the window
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 99; i++) cache.get(Integer.toString(i));
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package brave.webmvc;
+
+import brave.ScopedSpan;
+import brave.Span;
+import brave.Tracing;
+import brave.http.HttpTracing;
+import brave.httpclient.TracingHttpClientBuilder;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.Sampler;
+import brave.webmvc.TracePropagation.Format;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the headers each {@link Format} puts on a real traced http client request. */
+public class TracePropagationTest {
+  static final String TRACEPARENT =
+      "00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01";
+
+  final AtomicReference<Headers> requestHeaders = new AtomicReference<>();
+  HttpServer server;
+  String url;
+
+  @Before public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/api", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        requestHeaders.set(exchange.getRequestHeaders());
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/api";
+  }
+
+  @After public void close() {
+    server.stop(0);
+  }
+
+  @Test public void b3Multi() throws IOException {
+    String traceId = send(Format.B3_MULTI);
+
+    Headers headers = requestHeaders.get();
+    assertEquals(traceId, headers.getFirst("X-B3-TraceId"));
+    assertNotNull(headers.getFirst("X-B3-SpanId"));
+    assertNotNull(headers.getFirst("X-B3-ParentSpanId"));
+    assertEquals("1", headers.getFirst("X-B3-Sampled"));
+    assertNull(headers.getFirst("b3"));
+    assertNull(headers.getFirst("traceparent"));
+  }
+
+  /** The client span kind has its own inject format, which must be single too */
+  @Test public void b3Single() throws IOException {
+    String traceId = send(Format.B3_SINGLE);
+
+    Headers headers = requestHeaders.get();
+    String b3 = headers.getFirst("b3");
+    assertNotNull(b3);
+    // {traceId}-{spanId}-{sampled}, without the parent span ID
+    assertTrue(b3, b3.matches(traceId + "-[0-9a-f]{16}-1"));
+    assertNull(headers.getFirst("X-B3-TraceId"));
+    assertNull(headers.getFirst("traceparent"));
+  }
+
+  @Test public void w3c() throws IOException {
+    String traceId = send(Format.W3C);
+
+    Headers headers = requestHeaders.get();
+    String traceparent = headers.getFirst("traceparent");
+    assertNotNull(traceparent);
+    assertTrue(traceparent,
+        traceparent.matches("00-" + TracePropagation.ZERO_HIGH + traceId + "-[0-9a-f]{16}-01"));
+    assertNull(headers.getFirst("X-B3-TraceId"));
+    assertNull(headers.getFirst("b3"));
+  }
+
+  @Test public void parseTraceparent() {
+    TraceContext context = TracePropagation.parseTraceparent(TRACEPARENT);
+
+    assertEquals("463ac35c9f6413ad48485a3953bb6124", context.traceIdString());
+    assertEquals("a2fb4a1d1a96d312", context.spanIdString());
+    assertTrue(context.sampled());
+  }
+
+  /** Version 00 has no further fields, so it must be exactly 55 characters */
+  @Test public void parseTraceparent_version00TooLong() {
+    assertNull(TracePropagation.parseTraceparent(TRACEPARENT + "-extra"));
+    assertNull(TracePropagation.parseTraceparent(TRACEPARENT + "0"));
+  }
+
+  /** Later versions may add fields after a '-' */
+  @Test public void parseTraceparent_laterVersionMayBeLonger() {
+    assertNotNull(TracePropagation.parseTraceparent("01" + TRACEPARENT.substring(2) + "-extra"));
+    assertNull(TracePropagation.parseTraceparent("01" + TRACEPARENT.substring(2) + "0"));
+  }
+
+  /** W3C has no shared spans, so a server must not reuse the caller's span ID */
+  @Test public void traceparentExtractsAsChild() {
+    Tracing tracing = Tracing.newBuilder()
+        .propagationFactory(TracePropagation.create(Format.W3C))
+        .build();
+    try {
+      Map<String, String> request = Collections.singletonMap("traceparent", TRACEPARENT);
+      TraceContextOrSamplingFlags extracted = tracing.propagation().extractor(
+          new Propagation.Getter<Map<String, String>, String>() {
+            @Override public String get(Map<String, String> request, String key) {
+              return request.get(key);
+            }
+          }).extract(request);
+
+      Span server = tracing.tracer().joinSpan(extracted.context());
+      assertEquals("463ac35c9f6413ad48485a3953bb6124", server.context().traceIdString());
+      assertEquals("a2fb4a1d1a96d312", server.context().parentIdString());
+      assertFalse("a2fb4a1d1a96d312".equals(server.context().spanIdString()));
+    } finally {
+      tracing.close();
+    }
+  }
+
+  /** Sends a request inside a new trace, and returns its trace ID */
+  String send(Format format) throws IOException {
+    Tracing tracing = Tracing.newBuilder()
+        .sampler(Sampler.ALWAYS_SAMPLE)
+        .propagationFactory(TracePropagation.create(format))
+        .build();
+    try (CloseableHttpClient client =
+             TracingHttpClientBuilder.create(HttpTracing.create(tracing)).build()) {
+      ScopedSpan parent = tracing.tracer().startScopedSpan("parent");
+      try {
+        EntityUtils.consume(client.execute(new HttpGet(url)).getEntity());
+        return parent.context().traceIdString();
+      } finally {
+        parent.finish();
+      }
+    } finally {
+      tracing.close();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package brave.webmvc;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.webmvc.TracePropagation.Format;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+import static brave.webmvc.TracingConfiguration.USER_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that {@link UserNamePropagation} reads and writes what baggage propagation would. */
+public class UserNamePropagationTest {
+  static final Propagation.Getter<Map<String, String>, String> GETTER =
+      new Propagation.Getter<Map<String, String>, String>() {
+        @Override public String get(Map<String, String> request, String key) {
+          return request.get(key);
+        }
+      };
+  static final Propagation.Setter<Map<String, String>, String> SETTER =
+      new Propagation.Setter<Map<String, String>, String>() {
+        @Override public void put(Map<String, String> request, String key, String value) {
+          request.put(key, value);
+        }
+      };
+
+  Tracing tracing = Tracing.newBuilder()
+      .propagationFactory(
+          UserNamePropagation.create(TracePropagation.create(Format.B3_MULTI), USER_NAME))
+      .build();
+  TraceContext.Extractor<Map<String, String>> extractor =
+      tracing.propagation().extractor(GETTER);
+  TraceContext.Injector<Map<String, String>> injector = tracing.propagation().injector(SETTER);
+
+  @After public void close() {
+    tracing.close();
+  }
+
+  @Test public void extractsAndInjectsUserName() {
+    Map<String, String> incoming = headers("romeo");
+
+    Span span = tracing.tracer().nextSpan(extractor.extract(incoming));
+    assertEquals("romeo", USER_NAME.getValue(span.context()));
+
+    Map<String, String> outgoing = new LinkedHashMap<>();
+    injector.inject(tracing.tracer().newChild(span.context()).context(), outgoing);
+    assertEquals("romeo", outgoing.get("user_name"));
+    assertEquals(incoming.get("x-b3-traceid"), outgoing.get("x-b3-traceid"));
+  }
+
+  @Test public void noBaggageWithoutUserName() {
+    TraceContextOrSamplingFlags extracted = extractor.extract(headers(null));
+
+    Span span = tracing.tracer().nextSpan(extracted);
+    assertTrue(span.context().extra().isEmpty());
+    assertNull(USER_NAME.getValue(span.context()));
+
+    Map<String, String> outgoing = new LinkedHashMap<>();
+    injector.inject(span.context(), outgoing);
+    assertNull(outgoing.get("user_name"));
+    assertEquals(span.context().traceIdString(), outgoing.get("x-b3-traceid"));
+  }
+
+  @Test public void newTraceKeepsUpdatedUserName() {
+    Span span = tracing.tracer().newTrace();
+    assertTrue(USER_NAME.updateValue(span.context(), "romeo"));
+    assertEquals("romeo", USER_NAME.getValue(span.context()));
+
+    Map<String, String> outgoing = new LinkedHashMap<>();
+    injector.inject(tracing.tracer().newChild(span.context()).context(), outgoing);
+    assertEquals("romeo", outgoing.get("user_name"));
+  }
+
+  static Map<String, String> headers(String userName) {
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("x-b3-traceid", "86154a4ba6e91385");
+    headers.put("x-b3-spanid", "4d1e00c0db9010db");
+    headers.put("x-b3-sampled", "1");
+    if (userName != null) headers.put("user_name", userName);
+    return headers;
+  }
+}